@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Small lock free pool of frame buffers
+//
+// Buffers are taken and returned by swapping slots, so neither side allocates or blocks.
+// If the pool is empty a new buffer is made, and buffers are dropped on release if the pool
+// is full or they grew past the limit, so a buffer that is never released only costs garbage.
+
+public class BufferPool {
+
+	private final AtomicReferenceArray<WireBuffer> slots;
+	private final int initialCapacity;
+	private final int maxCapacity;
+
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	BufferPool(int size, int initialCapacity, int maxCapacity) {
+		this.slots = new AtomicReferenceArray<WireBuffer>(size);
+		this.initialCapacity = initialCapacity;
+		this.maxCapacity = maxCapacity;
+	}
+
+	WireBuffer acquire() {
+		final int size = slots.length();
+		int start = next.get();
+		for(int cnt = 0; cnt < size; cnt++) {
+			int slot = (start + cnt) % size;
+			WireBuffer buffer = slots.getAndSet(slot, null);
+			if(buffer != null) {
+				next.lazySet(slot);
+				buffer.clear();
+				return buffer;
+			}
+		}
+		return new WireBuffer(initialCapacity);
+	}
+
+	void release(WireBuffer buffer) {
+		if(buffer == null || buffer.data.length > maxCapacity) {
+			return;
+		}
+		final int size = slots.length();
+		int start = next.get();
+		for(int cnt = 0; cnt < size; cnt++) {
+			int slot = (start + cnt) % size;
+			if(slots.compareAndSet(slot, null, buffer)) {
+				next.lazySet(slot);
+				return;
+			}
+		}
+	}
+
+}
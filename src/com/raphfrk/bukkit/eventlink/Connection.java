@@ -21,46 +21,65 @@
  ******************************************************************************/
 package com.raphfrk.bukkit.eventlink;
 
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OptionalDataException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.LinkedList;
+import java.nio.channels.ClosedChannelException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.net.ssl.SSLSession;
+
 public class Connection  {
 
-	private final EventLink p;
+	final EventLink p;
 
 	private final Connection thisConnection;
 
-	private final Socket s;
+	final Socket s;
 
-	private final ConnectionManager connectionManager;
+	final ConnectionManager connectionManager;
 
-	private final String serverName;
+	final String serverName;
 
 	private final ObjectInputStream in;
 	private final ObjectOutputStream out;
 
+	final WireOptions wireOptions;
+
+	// Only used when the binary wire format was negotiated
+	final PacketCodec codec;
+
 	private final InConnection inConnection;
 	private final OutConnection outConnection;
 
 	private final KillableThread inThread;
 	private final KillableThread outThread;
 
-	private final Object syncObject;
+	private final int writeBufferSize;
+	// Legacy writes don't report their size, so batches are limited by packet count
+	private static final int maxLegacyBatch = 64;
+	private final int writeFlushDelay;
 
-	Connection(ConnectionManager connectionManager, Object syncObject, EventLink p, Socket s, ObjectInputStream in, ObjectOutputStream out, String serverName) {
+	// Protocol and cipher suite negotiated for the link, for the stats
+	private volatile String tlsDescription = null;
+
+	Connection(ConnectionManager connectionManager, EventLink p, Socket s, ObjectInputStream in, ObjectOutputStream out, WireOptions wireOptions, String serverName) {
 		this.connectionManager = connectionManager;
 		this.p = p;
 		this.s = s;
 		this.serverName = serverName;
-		this.syncObject = syncObject;
+		this.wireOptions = wireOptions;
+		this.codec = wireOptions.isBinary() ? new PacketCodec(wireOptions, p.serverName, p.compressionThreshold) : null;
+		this.writeBufferSize = p.writeBufferSize;
+		this.writeFlushDelay = p.writeFlushDelay;
 
 		try {
 			s.setSoTimeout(1000);
@@ -79,6 +98,9 @@ public class Connection  {
 			outThread.start();
 
 			inConnection = new InConnection();
+			if(wireOptions.legacyPacket != null) {
+				connectionManager.receive(wireOptions.legacyPacket);
+			}
 			inThread = inConnection;
 			inThread.setName("In connection: " + s.getInetAddress().getHostAddress() + ":" + s.getPort());
 			inThread.start();
@@ -135,53 +157,112 @@ public class Connection  {
 		return serverName;
 	}
 
-	public void send(EventLinkPacket eventLinkPacket) {
-		outConnection.send(eventLinkPacket);
+	void setTlsSession(SSLSession session) {
+		if(session != null) {
+			tlsDescription = session.getProtocol() + " " + session.getCipherSuite();
+		}
+	}
+
+	String getStats() {
+		String stats = codec == null ? "serialized objects" : codec.getCompressionStats();
+		return serverName + ": " + (tlsDescription == null ? "" : tlsDescription + ", ") + stats;
+	}
+
+	public SendResult send(EventLinkPacket eventLinkPacket) {
+		return outConnection.send(eventLinkPacket);
 	}
 
 	final AtomicBoolean closeLock = new AtomicBoolean(false);
 
 	private class OutConnection extends KillableThread {
 
-		private LinkedList<EventLinkPacket> sendQueue = new LinkedList<EventLinkPacket>();
+		private final LaneQueue sendQueue = new LaneQueue(p, serverName);
 
-		public void send(EventLinkPacket eventLinkPacket) {
+		public SendResult send(EventLinkPacket eventLinkPacket) {
+			return sendQueue.offer(eventLinkPacket, Connection.this);
+		}
 
-			synchronized(sendQueue) {
-				sendQueue.addLast(eventLinkPacket);
-				sendQueue.notify();
-			}
+		// Writes the next packet or fragment, returns -1 if nothing was queued within waitMillis,
+		// otherwise the number of bytes written, 0 in legacy mode or if the packet was skipped
+		// The legacy stream sits on a DeferredOutputStream, so writeObject never blocks on the socket
 
+		private int writeNext(OutputStream frameOut, long waitMillis) throws IOException {
+			if(frameOut != null) {
+				WireBuffer frame = sendQueue.pollFrame(codec, waitMillis);
+				if(frame == null) {
+					return -1;
+				}
+				int length = frame.limit;
+				codec.writeFrame(frame, frameOut);
+				return length;
+			} else {
+				EventLinkPacket next = sendQueue.poll(waitMillis);
+				if(next == null) {
+					return -1;
+				}
+				EventLinkPacket original = next;
+				try {
+					next = next.decodeRawPayload();
+				} catch (IOException e) {
+					p.log("Unable to decode forwarded packet for " + serverName + ": " + e);
+					return 0;
+				} catch (ClassNotFoundException e) {
+					p.log("Unable to forward packet to " + serverName + ", payload class not available: " + e.getMessage());
+					return 0;
+				} finally {
+					original.releaseSharedPayload();
+				}
+				synchronized(out) {
+					out.reset();
+					synchronized(next.payload) {
+						out.writeObject(next); 
+					}
+				}
+				return 0;
+			}
 		}
 
 		public void run() {
 
+			OutputStream frameOut = null;
+			if(codec != null) {
+				try {
+					frameOut = new BufferedOutputStream(s.getOutputStream(), writeBufferSize);
+				} catch (IOException e) {
+					p.log("Unable to open output stream to " + serverName);
+					kill();
+				}
+			}
+
 			while(!killed()) {
 
-				EventLinkPacket next = null;
-
-				while(next == null && !killed()) {
-					synchronized(sendQueue) {
-						if(!killed() && sendQueue.isEmpty()) {
-							try {
-								sendQueue.wait(200);
-							} catch (InterruptedException e) {
-								kill();
-								continue;
-							}
-						} else {
-							next = sendQueue.removeFirst();
-						}
-					}
-				}
-				if(killed()) {
-					continue;
-				}
 				try {
-					synchronized(out) {
-						out.reset();
-						synchronized(next.payload) {
-							out.writeObject(next); 
+					int written = -1;
+					while(written < 0 && !killed()) {
+						written = writeNext(frameOut, 200);
+					}
+					if(killed()) {
+						continue;
+					}
+					// Everything queued goes into the buffer and is flushed once, waiting at most
+					// writeFlushDelay for more packets unless the buffer fills or a packet is urgent
+					long flushTime = System.currentTimeMillis() + writeFlushDelay;
+					int batchBytes = 0;
+					int batchPackets = 0;
+					boolean urgent = false;
+					while(written >= 0) {
+						batchBytes += written;
+						batchPackets++;
+						urgent |= sendQueue.wasUrgent();
+						boolean full = batchBytes >= writeBufferSize || (frameOut == null && batchPackets >= maxLegacyBatch);
+						long wait = (urgent || full) ? 0 : flushTime - System.currentTimeMillis();
+						written = writeNext(frameOut, wait);
+					}
+					if(frameOut != null) {
+						frameOut.flush();
+					} else {
+						synchronized(out) {
+							out.flush();
 						}
 					}
 				} catch (OptionalDataException ode) {
@@ -219,57 +300,48 @@ public class Connection  {
 				SSLUtils.closeSocket(s);
 			} 
 
-			synchronized(syncObject) {
-				syncObject.notify();
-			}
+			sendQueue.wakeProducers();
 		}
 	}
 
-	public EventLinkPacket receive() {
-		return inConnection.receive();
-	}
-
-	public boolean isEmpty() {
-		return inConnection.isEmpty();
-	}
-
-
 	private class InConnection extends KillableThread {
 
-		private LinkedList<EventLinkPacket> receiveQueue = new LinkedList<EventLinkPacket>();
+		public void run() {
 
-		public EventLinkPacket receive() {
+			SendQueue.setNonBlocking();
 
-			synchronized(receiveQueue) {
-				if(receiveQueue.isEmpty()) {
-					return null;
-				} else {
-					return receiveQueue.removeFirst();
+			InputStream frameIn = null;
+			if(codec != null) {
+				try {
+					frameIn = s.getInputStream();
+				} catch (IOException e) {
+					p.log("Unable to open input stream from " + serverName);
+					kill();
 				}
 			}
 
-		}
-
-		public boolean isEmpty() {
-
-			synchronized(receiveQueue) {
-				return receiveQueue.isEmpty();
-			}
-
-		}
-
-		public void run() {
-
 			while(!killed()) {
 
 				Object obj = null;
 				try {
-					obj = in.readObject();
+					if(frameIn != null) {
+						obj = codec.readPacket(frameIn);
+						if(obj == null) {
+							kill();
+							continue;
+						}
+					} else {
+						obj = in.readObject();
+					}
 				} catch (SocketTimeoutException ste) {
 					continue;
 				} catch (SocketException se) {
 					kill();
 					continue;
+				} catch (ClosedChannelException cce) {
+					// Links on the NIO transport, interrupting a blocked read closes the channel
+					kill();
+					continue;
 				} catch (EOFException eof) {
 					kill();
 					continue;
@@ -287,7 +359,10 @@ public class Connection  {
 					continue;
 				} catch (ClassNotFoundException e) {
 					p.log("Received unknown class from: " + serverName);
-					kill();
+					// Binary frames are length prefixed, so the stream is still in sync
+					if(frameIn == null) {
+						kill();
+					}
 					continue;
 				}
 
@@ -297,16 +372,7 @@ public class Connection  {
 					continue;
 				}
 
-				EventLinkPacket eventLinkPacket = (EventLinkPacket)obj;
-
-				synchronized(syncObject) {
-					synchronized(receiveQueue) {
-						if(eventLinkPacket!=null) {
-							receiveQueue.addLast(eventLinkPacket);
-							syncObject.notify();
-						}
-					}
-				}
+				connectionManager.receive((EventLinkPacket)obj);
 			}
 
 			boolean clearRoutes = false;
@@ -333,10 +399,6 @@ public class Connection  {
 			if(!canSkipClose) {
 				SSLUtils.closeSocket(s);
 			}
-
-			synchronized(syncObject) {
-				syncObject.notify();
-			}
 		}
 	}
 }
@@ -22,16 +22,19 @@
 package com.raphfrk.bukkit.eventlink;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Enumeration;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.net.ssl.SSLSocket;
+
 import org.bukkit.event.Event;
 
 public class ConnectionManager {
@@ -40,8 +43,6 @@ public class ConnectionManager {
 
 	private final EventLink p;
 
-	private final Object syncObject = new Object();
-
 	private KillableThread pollThread;
 	private final Object pollSync = new Object();
 	private String password;
@@ -52,7 +53,12 @@ public class ConnectionManager {
 	@SuppressWarnings("unused")
 	private final Object endSync = new Object();
 
-	private final KillableThread t;
+	// Inbound packets are spread over these by source server, so each source stays in order
+	private final InObjects[] inObjects;
+
+	final StreamManager streamManager;
+
+	private final RouteCache routeCache;
 
 	ConnectionManager(EventLink p, String serverName, String password) {
 
@@ -62,8 +68,16 @@ public class ConnectionManager {
 
 		this.p = p;
 
-		t = new InObjects();
-		t.start();
+		streamManager = new StreamManager(p, this);
+
+		routeCache = new RouteCache(p, "servers", p.routeCacheSize);
+
+		inObjects = new InObjects[Math.max(1, p.inboundThreads)];
+		for(int cnt = 0; cnt < inObjects.length; cnt++) {
+			inObjects[cnt] = new InObjects();
+			inObjects[cnt].setName("Inbound packets " + cnt);
+			inObjects[cnt].start();
+		}
 
 		pollThread = new ConnectionPolling();
 		pollThread.setName("Poll Thread");
@@ -72,26 +86,137 @@ public class ConnectionManager {
 	}
 
 	boolean sendObject(String[] targets, Object payload) {
-		EventLinkPacket eventLinkPacket = new EventLinkPacket(serverName, targets, payload);
-
-		return sendPacket(eventLinkPacket);
+		return sendObject(targets, payload, false);
 	}
 
 	boolean sendObject(String target, Object payload) {
+		return sendObject(target, payload, false);
+	}
+
+	// The packet gets its own copy of the targets, sendPacket clears the entries as it groups them
+
+	boolean sendObject(String[] targets, Object payload, boolean urgent) {
+		EventLinkPacket eventLinkPacket = new EventLinkPacket(serverName, targets.clone(), payload);
+		eventLinkPacket.setUrgent(urgent);
+
+		return sendPacket(eventLinkPacket).isQueued();
+	}
+
+	boolean sendObject(String target, Object payload, boolean urgent) {
 
 		EventLinkPacket eventLinkPacket = new EventLinkPacket(serverName, target, payload);
+		eventLinkPacket.setUrgent(urgent);
+
+		return sendPacket(eventLinkPacket).isQueued();
+
+	}
+
+	// HIGH priority packets are also flushed straight away
+
+	boolean sendObject(String[] targets, Object payload, SendPriority priority) {
+		return sendObject(new EventLinkPacket(serverName, targets.clone(), payload), priority);
+	}
+
+	boolean sendObject(String target, Object payload, SendPriority priority) {
+		return sendObject(new EventLinkPacket(serverName, target, payload), priority);
+	}
+
+	private boolean sendObject(EventLinkPacket eventLinkPacket, SendPriority priority) {
+		eventLinkPacket.setPriority(priority);
+		eventLinkPacket.setUrgent(priority == SendPriority.HIGH);
+
+		return sendPacket(eventLinkPacket).isQueued();
+	}
+
+	// Per thread work arrays for sendPacket, so routing a packet doesn't allocate
+	// Local delivery can end up sending from inside sendPacket, nested calls get their own
+
+	private static class SendScratch {
+
+		boolean inUse = false;
+
+		String[] targets = new String[4];
+		Connection[] connections = new Connection[4];
+		EventLinkPacket[] packets = new EventLinkPacket[4];
+		int hops = 0;
+		int binaryHops = 0;
+
+		void addHop(Connection connection, EventLinkPacket packet) {
+			if(hops == connections.length) {
+				connections = Arrays.copyOf(connections, hops << 1);
+				packets = Arrays.copyOf(packets, hops << 1);
+			}
+			connections[hops] = connection;
+			packets[hops] = packet;
+			hops++;
+			if(connection.codec != null) {
+				binaryHops++;
+			}
+		}
 
-		return sendPacket(eventLinkPacket);
+		void clear() {
+			Arrays.fill(targets, null);
+			Arrays.fill(connections, 0, hops, null);
+			Arrays.fill(packets, 0, hops, null);
+			hops = 0;
+			binaryHops = 0;
+			inUse = false;
+		}
 
 	}
 
-	boolean sendPacket(EventLinkPacket eventLinkPacket) {
+	private final ThreadLocal<SendScratch> sendScratch = new ThreadLocal<SendScratch>() {
+		@Override
+		protected SendScratch initialValue() {
+			return new SendScratch();
+		}
+	};
+
+	// Returns the worst outcome over the next hops, NO_ROUTE only if nothing was sent
+	// The packet's destination array is used as work space, callers must not share it
 
-		boolean sent = false;
+	SendResult sendPacket(EventLinkPacket eventLinkPacket) {
+
+		SendScratch scratch = sendScratch.get();
+		if(scratch.inUse) {
+			scratch = new SendScratch();
+		}
+		scratch.inUse = true;
+
+		try {
+			return sendPacket(eventLinkPacket, scratch);
+		} finally {
+			scratch.clear();
+		}
+
+	}
+
+	private SendResult sendPacket(EventLinkPacket eventLinkPacket, SendScratch scratch) {
+
+		SendResult result = SendResult.NO_ROUTE;
 
 		String[] destinationBackup = eventLinkPacket.destinationServers;
 		final int length = destinationBackup.length;
 
+		// Repeated sends to the same list of servers reuse the grouping from last time
+		RouteCache.Plan plan = length > 1 ? routeCache.getPlan(destinationBackup) : null;
+
+		if(plan != null) {
+			String[][] groups = plan.groups;
+			for(int cnt = 0; cnt < groups.length; cnt++) {
+				EventLinkPacket newPacket = groups.length == 1 ? eventLinkPacket : new EventLinkPacket(eventLinkPacket, groups[cnt]);
+				if(!addHop(scratch, newPacket, groups[cnt][0], plan.nextHops[cnt])) {
+					return SendResult.REJECTED;
+				}
+			}
+			return sendHops(eventLinkPacket, scratch, result);
+		}
+
+		if(scratch.targets.length < length) {
+			scratch.targets = new String[length];
+		}
+		String[] targets = scratch.targets;
+
 		for(int cnt1=0;cnt1<length;cnt1++) {
 			String currentTarget = destinationBackup[cnt1];
 			destinationBackup[cnt1] = null;
@@ -101,71 +226,148 @@ public class ConnectionManager {
 			}
 
 			if(currentTarget.equals(p.serverName)) {
-				String[] temp = new String[1];
-				temp[0] = currentTarget;
-
-				processPacket(new EventLinkPacket(eventLinkPacket, temp));
-				sent = true;
+				EventLinkPacket localPacket;
+				if(length == 1) {
+					destinationBackup[0] = currentTarget;
+					localPacket = eventLinkPacket;
+				} else {
+					localPacket = new EventLinkPacket(eventLinkPacket, new String[] {currentTarget});
+				}
+				processPacket(localPacket);
+				result = SendResult.combine(result, SendResult.QUEUED);
 				continue;
 			}
 
 			String currentNextHop = p.routingTableManager.getNextHop("servers", currentTarget);
 
-			ArrayList<String> targets = new ArrayList<String>();
-			targets.add(currentTarget);
+			int count = 0;
+			targets[count++] = currentTarget;
 
 			if(currentNextHop != null) {
 
 				for(int cnt2=cnt1+1;cnt2<length;cnt2++) {
 					String target = destinationBackup[cnt2];
+					if(target == null || target.equals(p.serverName)) {
+						continue;
+					}
 					String nextHop = p.routingTableManager.getNextHop("servers", target);
-					if(!target.equals(p.serverName) && nextHop.equals(currentNextHop)) {
+					if(currentNextHop.equals(nextHop)) {
 						destinationBackup[cnt2] = null;
-						targets.add(target);
+						targets[count++] = target;
 					}
 				}
 
 			}
 
-			int length2 = targets.size();
-
-			String[] temp = new String[length2];
+			// If every destination shares this hop the packet is sent as it is, otherwise
+			// each group gets its own copy with just its destinations
+			EventLinkPacket newPacket;
+			if(count == length) {
+				System.arraycopy(targets, 0, destinationBackup, 0, count);
+				newPacket = eventLinkPacket;
+			} else {
+				newPacket = new EventLinkPacket(eventLinkPacket, Arrays.copyOf(targets, count));
+			}
 
-			for(int cnt2=0;cnt2<length2;cnt2++) {
-				temp[cnt2] = targets.get(cnt2);
+			if(!addHop(scratch, newPacket, currentTarget, currentNextHop)) {
+				return SendResult.REJECTED;
 			}
+		}
+
+		return sendHops(eventLinkPacket, scratch, result);
+
+	}
 
-			EventLinkPacket newPacket = new EventLinkPacket(eventLinkPacket, temp);
+	// Picks the connection for one group of destinations, false if the manager is stopping
 
-			Connection targetConnection = null;
+	private boolean addHop(SendScratch scratch, EventLinkPacket newPacket, String firstTarget, String nextHop) {
+
+		Connection targetConnection = null;
+		
+		synchronized(activeConnections) {
+			if(getEnd()) {
+				p.log("Attempting to send object while connection manager is stopping");
+				return false;
+			}
+			Connection oneHop = activeConnections.get(firstTarget);
+			Connection multiHop = nextHop==null?null:activeConnections.get(nextHop);
 			
-			synchronized(activeConnections) {
-				if(getEnd()) {
-					p.log("Attempting to send object while connection manager is stopping");
-					return false;
+			if(multiHop != null) {
+				if( (newPacket.timeToLive--) >= 0) {
+					targetConnection = multiHop;
 				}
-				Connection oneHop = temp[0]==null?null:activeConnections.get(temp[0]);
-				Connection multiHop = currentNextHop==null?null:activeConnections.get(currentNextHop);
-				
-				if(currentNextHop != null && activeConnections.containsKey(currentNextHop)) {
-					if( (newPacket.timeToLive--) >= 0) {
-						sent = true;
-						targetConnection = multiHop;
-					}
-				} else if(oneHop != null) {
-					if( (newPacket.timeToLive--) >= 0) {
-						sent = true;
-						targetConnection = oneHop;
-					}
+			} else if(oneHop != null) {
+				if( (newPacket.timeToLive--) >= 0) {
+					targetConnection = oneHop;
 				}
 			}
-			if (targetConnection != null) {
-				targetConnection.send(newPacket);
+		}
+		if (targetConnection != null) {
+			scratch.addHop(targetConnection, newPacket);
+		}
+		return true;
+
+	}
+
+	// Packets are only handed to the connections once all next hops are known,
+	// so a payload going over several binary links can be encoded once
+	// With encode_on_send this is done for single links too, so the writer only copies bytes
+
+	private SendResult sendHops(EventLinkPacket eventLinkPacket, SendScratch scratch, SendResult result) {
+
+		RawPayload shared = null;
+		boolean forwarded = false;
+		Object payload = eventLinkPacket.payload;
+		if(payload instanceof RawPayload) {
+			// Forwarded payloads may be in a pooled buffer, so every hop takes a reference,
+			// legacy ones included as their writer decodes it later
+			shared = (RawPayload)payload;
+			forwarded = true;
+		} else if(scratch.binaryHops > (p.encodeOnSend ? 0 : 1) && payload != null) {
+			try {
+				synchronized(payload) {
+					shared = PacketCodec.encodeShared(payload);
+				}
+			} catch (IOException e) {
+				// Left to the connections, they log the failure
+				shared = null;
 			}
 		}
 
-		return sent;
+		for(int cnt = 0; cnt < scratch.hops; cnt++) {
+			Connection targetConnection = scratch.connections[cnt];
+			EventLinkPacket newPacket = scratch.packets[cnt];
+			if(shared != null && (forwarded || targetConnection.codec != null)) {
+				shared.retain();
+				newPacket.setSharedPayload(shared);
+				SendResult sent = targetConnection.send(newPacket);
+				if(!sent.isQueued()) {
+					newPacket.releaseSharedPayload();
+				}
+				result = SendResult.combine(result, sent);
+			} else {
+				result = SendResult.combine(result, targetConnection.send(newPacket));
+			}
+		}
+
+		// The reference on a forwarded payload belongs to the received packet
+		if(shared != null && !forwarded) {
+			shared.release();
+		}
 
+		return result;
+
+	}
+
+	ArrayList<String> getStats() {
+		ArrayList<String> stats = new ArrayList<String>();
+		for(Connection connection : activeConnections.values()) {
+			stats.add(connection.getStats());
+		}
+		if(stats.isEmpty()) {
+			stats.add("No active connections");
+		}
+		return stats;
 	}
 
 	String deleteConnection(String serverName) {
@@ -214,7 +416,6 @@ public class ConnectionManager {
 					p,
 					null,
 					this.serverName,
-					new File(p.pluginDirectory + EventLink.slash + p.serverKeys), 
 					new File(p.pluginDirectory + EventLink.slash + p.clientKeys),
 					password,
 					hostname,
@@ -228,7 +429,13 @@ public class ConnectionManager {
 
 	}
 
-	boolean addConnection(String serverName, Socket s, ObjectInputStream in, ObjectOutputStream out ) {
+	boolean addConnection(String serverName, Socket s, ObjectInputStream in, ObjectOutputStream out, WireOptions wireOptions) {
+		return addConnection(serverName, s, in, out, wireOptions, null);
+	}
+
+	// Binary links from the NIO transport are moved to a selector, legacy ones keep their threads
+
+	boolean addConnection(String serverName, Socket s, ObjectInputStream in, ObjectOutputStream out, WireOptions wireOptions, SSLEngineStreams engineStreams) {
 
 		boolean clearRoutes = false;
 		synchronized(activeConnections) {
@@ -245,7 +452,17 @@ public class ConnectionManager {
 				p.log(serverName + " already has a connection, closing old connection");
 				deleteConnection(serverName);
 			}
-			Connection connection = new Connection(this, syncObject, p, s, in, out, serverName);
+			Connection connection;
+			if(engineStreams != null && wireOptions.isBinary() && p.nioTransport != null) {
+				connection = new NioConnection(this, p, wireOptions, serverName, engineStreams, p.nioTransport);
+			} else {
+				connection = new Connection(this, p, s, in, out, wireOptions, serverName);
+			}
+			if(engineStreams != null) {
+				connection.setTlsSession(engineStreams.getSession());
+			} else if(s instanceof SSLSocket) {
+				connection.setTlsSession(((SSLSocket)s).getSession());
+			}
 			activeConnections.put(serverName, connection);
 		}
 		
@@ -253,10 +470,6 @@ public class ConnectionManager {
 			p.routingTableManager.clearRoutesThrough(serverName);
 		}
 
-		synchronized(syncObject) {
-			syncObject.notify();
-		}
-
 		p.log("Connection successfully established with " + serverName );
 
 		p.routingTableManager.sendAllTablesTo(serverName);
@@ -265,6 +478,11 @@ public class ConnectionManager {
 
 	}
 
+	boolean supportsRoutingDeltas(String serverName) {
+		Connection connection = activeConnections.get(serverName);
+		return connection != null && connection.wireOptions.routingDeltas;
+	}
+
 	boolean isConnected(String serverName) {
 		Connection connection;
 		synchronized(activeConnections) {
@@ -281,27 +499,23 @@ public class ConnectionManager {
 	}
 
 	void checkTrusted(String password) {
-		Enumeration<String> aliases = SSLUtils.getAliases(new File(p.pluginDirectory + EventLink.slash + p.clientKeys), password);
-		while(aliases.hasMoreElements()) {
-			String current = aliases.nextElement();
-			String[] split = (current.split(";"));
+		for(PeerRegistry.Peer peer : p.peerRegistry.getPeers()) {
 
-			String currentServerName = split[0];
+			String currentServerName = peer.name;
 
-			if(isConnected(currentServerName) || split.length<=1) {
+			if(isConnected(currentServerName) || !peer.hasAddress()) {
 				continue;
 			}
 
 			p.log("Attempting to connect to " + currentServerName);
 
-			String hostname = SSLUtils.getHostname(split[1]);
-			int portnum = SSLUtils.getPortnum(split[1]);
+			String hostname = peer.hostname;
+			int portnum = peer.portnum;
 
 			new EventLinkClient(
 					p,
 					null,
 					this.serverName,
-					new File(p.pluginDirectory + EventLink.slash + p.serverKeys), 
 					new File(p.pluginDirectory + EventLink.slash + p.clientKeys),
 					password,
 					hostname,
@@ -317,6 +531,8 @@ public class ConnectionManager {
 
 		end.set(true);
 
+		streamManager.stop();
+
 		LinkedList<Connection> connectionsToStop = new LinkedList<Connection>();
 
 		synchronized(activeConnections) {
@@ -356,6 +572,16 @@ public class ConnectionManager {
 		} catch (InterruptedException e) {
 		}
 
+		for(InObjects current : inObjects) {
+			current.interrupt();
+		}
+		try {
+			for(InObjects current : inObjects) {
+				current.join();
+			}
+		} catch (InterruptedException e) {
+		}
+
 	}
 
 	private class ConnectionPolling extends KillableThread {
@@ -377,64 +603,44 @@ public class ConnectionManager {
 
 	}
 
+	// Called by the connection readers
+
+	void receive(EventLinkPacket eventLinkPacket) {
+		String source = eventLinkPacket.sourceServer;
+		int hash = source == null ? 0 : source.hashCode();
+		hash ^= hash >>> 16;
+		inObjects[(hash & 0x7FFFFFFF) % inObjects.length].inbound.offer(eventLinkPacket);
+	}
+
 	private class InObjects extends KillableThread {
 
-		LinkedList<EventLinkPacket> eventLinkPackets = new LinkedList<EventLinkPacket>();
+		private final LinkedBlockingQueue<EventLinkPacket> inbound = new LinkedBlockingQueue<EventLinkPacket>();
 
 		public void run() {
 
-			while(!killed()) {
+			SendQueue.setNonBlocking();
 
-				Collection<Connection> connections;
-				synchronized(activeConnections) {
-					connections = activeConnections.values();
-				}
-				
-				for(Connection c : connections) {
-					EventLinkPacket eventLinkPacket = null;
-
-					do {
-						eventLinkPacket = c.receive();
-						if(eventLinkPacket!=null) {
-							eventLinkPackets.addLast(eventLinkPacket);
-						}
-					} while (eventLinkPacket != null );
-				}
+			while(!killed()) {
 
-				EventLinkPacket eventLinkPacket = null;
-				if(!eventLinkPackets.isEmpty()) {
-					eventLinkPacket = eventLinkPackets.removeFirst();
+				EventLinkPacket eventLinkPacket;
+				try {
+					eventLinkPacket = inbound.take();
+				} catch (InterruptedException e) {
+					kill();
+					continue;
 				}
-				while(eventLinkPacket!=null) {
 
+				// A payload that fails to decode only loses that packet
+				try {
 					processPacket(eventLinkPacket);
-
-					if(!eventLinkPackets.isEmpty()) {
-						eventLinkPacket = eventLinkPackets.removeFirst();
-					} else {
-						eventLinkPacket = null;
+				} catch (RuntimeException e) {
+					p.log("Unable to process packet from " + eventLinkPacket.sourceServer + ": " + e);
+				} finally {
+					if(eventLinkPacket.payload instanceof RawPayload) {
+						((RawPayload)eventLinkPacket.payload).release();
 					}
-
 				}
 
-				synchronized(syncObject) {
-					boolean active = false;
-					synchronized(activeConnections) {
-						for(Connection connection : activeConnections.values()) {
-							if(!connection.isEmpty()) {
-								active = true;
-								break;
-							}
-						}
-					}
-					if(!active) {
-						try {
-							syncObject.wait(10000);
-						} catch (InterruptedException e) {
-							kill();
-						}
-					}
-				}
 			}
 		}
 	}
@@ -445,25 +651,46 @@ public class ConnectionManager {
 			return;
 		} 
 
-		Object payload = eventLinkPacket.payload;
-
 		if(eventLinkPacket.destinationServers == null || eventLinkPacket.destinationServers.length == 0) {
 			return;
 		} else if(eventLinkPacket.destinationServers.length == 1 && eventLinkPacket.destinationServers[0] == null ) {
 			return;
 		} else if(eventLinkPacket.destinationServers.length != 1 || (!eventLinkPacket.destinationServers[0].equals(p.serverName))) {
 			sendPacket(eventLinkPacket);
-		} else if(payload instanceof Ping) {
+			return;
+		}
+
+		if(eventLinkPacket.payload instanceof RawPayload) {
+			try {
+				eventLinkPacket = eventLinkPacket.decodeRawPayload();
+			} catch (IOException e) {
+				p.log("Unable to decode packet from " + eventLinkPacket.sourceServer + ": " + e.getMessage());
+				return;
+			} catch (ClassNotFoundException e) {
+				p.log("Unable to decode packet from " + eventLinkPacket.sourceServer + ": " + e.getMessage());
+				return;
+			}
+		}
+
+		Object payload = eventLinkPacket.payload;
+
+		if(payload instanceof Ping) {
 			processEvent(eventLinkPacket, (Ping)eventLinkPacket.payload);
 		} else if(payload instanceof RoutingTable) {
 			processEvent(eventLinkPacket, (RoutingTable)eventLinkPacket.payload);
+		} else if(payload instanceof RoutingUpdate) {
+			p.routingTableManager.applyUpdate(eventLinkPacket.sourceServer, (RoutingUpdate)payload);
+		} else if(payload instanceof RoutingDigest) {
+			p.routingTableManager.applyDigest(eventLinkPacket.sourceServer, (RoutingDigest)payload);
+		} else if(payload instanceof StreamPacket) {
+			streamManager.receive(eventLinkPacket, (StreamPacket)payload);
 		} else if(payload instanceof Event) {
 			processEvent(eventLinkPacket, (Event)eventLinkPacket.payload);
 		}
 	}
 
 	void processEvent(EventLinkPacket eventLinkPacket, Ping ping) {
-		sendObject(eventLinkPacket.sourceServer, new EventLinkMessageEvent(ping.sourcePlayer, "Reply received from " + serverName));
+		sendObject(eventLinkPacket.sourceServer, new EventLinkMessageEvent(ping.sourcePlayer, "Reply received from " + serverName), true);
 	}
 
 	void processEvent(EventLinkPacket eventLinkPacket, RoutingTable rt) {
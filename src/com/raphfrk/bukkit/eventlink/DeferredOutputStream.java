@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Keeps everything in memory until flush, unlike BufferedOutputStream large writes
+// never go straight to the socket
+// Used under the legacy ObjectOutputStream so objects are serialized without any
+// network I/O and the socket write happens after the payload lock is released
+
+public class DeferredOutputStream extends OutputStream {
+
+	private static final int bufferShrinkSize = 64 * 1024;
+
+	private final OutputStream out;
+	private WireBuffer buffer = new WireBuffer(512);
+
+	DeferredOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	int size() {
+		return buffer.limit;
+	}
+
+	@Override
+	public void write(int b) {
+		buffer.writeByte(b);
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int length) {
+		buffer.writeBytes(b, offset, length);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if(buffer.limit > 0) {
+			out.write(buffer.data, 0, buffer.limit);
+			buffer.clear();
+			if(buffer.data.length > bufferShrinkSize) {
+				buffer = new WireBuffer(512);
+			}
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+}
@@ -23,7 +23,6 @@ package com.raphfrk.bukkit.eventlink;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -55,6 +54,41 @@ public class EventLink extends JavaPlugin {
 	int keySize;
 	HashSet<String> admins = new HashSet<String>();
 	boolean deadlockEnable;
+	boolean binaryWireFormat;
+	int wireDictionarySize;
+	int writeBufferSize = 16384;
+	int writeFlushDelay = 0;
+	int sendQueueSize = 4096;
+	SendQueue.OverflowPolicy sendQueuePolicy = SendQueue.OverflowPolicy.REJECT;
+	int sendQueueBlockTime = 1000;
+	String transport = "blocking";
+	int nioThreads = 2;
+	boolean virtualThreads = false;
+	boolean encodeOnSend = false;
+	int[] priorityWeights = SendPriority.parseWeights(null);
+	int fragmentSize = 16384;
+	boolean compression = false;
+	int compressionThreshold = 512;
+	int streamChunkSize = 8192;
+	int streamWindow = 8;
+	int streamTimeout = 30000;
+	int inboundThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+	int routeCacheSize = 256;
+	int routingUpdateWindow = 100;
+	int routingUpdateMinInterval = 500;
+	int routingUpdateMaxDelay = 2000;
+	int handshakeThreads = 4;
+	int handshakeQueueSize = 32;
+	int handshakesPerAddress = 8;
+	int handshakeTimeout = 10000;
+	String[] tlsProtocols = SSLContextManager.parseList(defaultTlsProtocols);
+	String[] tlsCipherSuites = SSLContextManager.parseList(defaultTlsCipherSuites);
+
+	// Fastest first on hardware with AES instructions, ChaCha20 is kept for hardware without them
+	static final String defaultTlsProtocols = "TLSv1.3,TLSv1.2";
+	static final String defaultTlsCipherSuites =
+			"TLS_AES_128_GCM_SHA256,TLS_AES_256_GCM_SHA384,TLS_CHACHA20_POLY1305_SHA256," +
+			"TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384,TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256";
 
 	File pluginDirectory;
 
@@ -67,9 +101,16 @@ public class EventLink extends JavaPlugin {
 	static final String slash = System.getProperty("file.separator");
 
 	Server server;
+
+	// Bukkit server thread, set in onEnable
+	volatile Thread mainThread = null;
 	
 	KillableThread deadlock;
 
+	NioTransport nioTransport = null;
+
+	PeerRegistry peerRegistry;
+	SSLContextManager sslContextManager;
 	ConnectionManager connectionManager;
 	RoutingTableManager routingTableManager;
 
@@ -93,6 +134,7 @@ public class EventLink extends JavaPlugin {
 
 		pm = getServer().getPluginManager();
 		server = getServer();
+		mainThread = Thread.currentThread();
 
 		logger.setLogPrefix(getServer().getLogger(), "[EventLink]");
 
@@ -110,17 +152,32 @@ public class EventLink extends JavaPlugin {
 
 			createCertFiles();
 
-			eventLinkServer = new EventLinkServer(
-					this, 
-					this.serverName,
+			peerRegistry = new PeerRegistry(new File(pluginDirectory + slash + clientKeys), password);
+
+			if(transport.equals("nio")) {
+				try {
+					nioTransport = new NioTransport(this, nioThreads);
+				} catch (IOException e) {
+					log("Unable to start NIO transport, using blocking sockets");
+				}
+			}
+
+			sslContextManager = new SSLContextManager(
 					new File(pluginDirectory + slash + serverKeys), 
 					new File(pluginDirectory + slash + clientKeys),
 					this.password,
+					this.tlsProtocols,
+					this.tlsCipherSuites
+			);
+
+			eventLinkServer = new EventLinkServer(
+					this, 
+					this.serverName,
 					this.portnum
 			);
 
 			connectionManager = new ConnectionManager(this, serverName, password);
-			routingTableManager = new RoutingTableManager(this, password);
+			routingTableManager = new RoutingTableManager(this);
 			addServer();
 			addOnlinePlayers();
 			addWorlds();
@@ -184,6 +241,10 @@ public class EventLink extends JavaPlugin {
 			routingTableManager.stop();
 			routingTableManager = null;
 		}
+		if(nioTransport!=null) {
+			nioTransport.stop();
+			nioTransport = null;
+		}
 		
 		if (deadlock != null) {
 			deadlock.kill();
@@ -257,8 +318,43 @@ public class EventLink extends JavaPlugin {
 		this.password = pf.getString("password" , "key_password");
 		this.algorithm = pf.getString("algorithm" , "RSA");
 		this.certAlgorithm = pf.getString("cert_algorithm" , "SHA512WITHRSA");
-		this.keySize = pf.getInt("key_size" , 512);
+		this.keySize = pf.getInt("key_size" , 2048);
 		this.deadlockEnable = pf.getBoolean("deadlock_monitor", false);
+		this.binaryWireFormat = pf.getBoolean("binary_wire_format", true);
+		this.wireDictionarySize = pf.getInt("wire_dictionary_size", 256);
+		this.writeBufferSize = Math.max(512, pf.getInt("write_buffer_size", 16384));
+		this.writeFlushDelay = Math.max(0, pf.getInt("write_flush_delay_ms", 0));
+		this.sendQueueSize = Math.max(2, pf.getInt("send_queue_size", 4096));
+		this.sendQueuePolicy = SendQueue.OverflowPolicy.parse(pf.getString("send_queue_policy", "reject"), SendQueue.OverflowPolicy.REJECT);
+		this.sendQueueBlockTime = Math.max(0, pf.getInt("send_queue_block_ms", 1000));
+		this.transport = pf.getString("transport", "blocking").trim().toLowerCase();
+		this.nioThreads = Math.max(1, pf.getInt("nio_threads", 2));
+		this.virtualThreads = pf.getBoolean("virtual_threads", false);
+		this.encodeOnSend = pf.getBoolean("encode_on_send", false);
+		this.priorityWeights = SendPriority.parseWeights(pf.getString("priority_weights", "8,4,1"));
+		this.fragmentSize = Math.max(1024, pf.getInt("fragment_size", 16384));
+		this.compression = pf.getBoolean("compression", false);
+		this.compressionThreshold = Math.max(64, pf.getInt("compression_threshold", 512));
+		this.streamChunkSize = Math.min(1024 * 1024, Math.max(512, pf.getInt("stream_chunk_size", 8192)));
+		this.streamWindow = Math.max(1, pf.getInt("stream_window", 8));
+		this.streamTimeout = Math.max(1000, pf.getInt("stream_timeout_ms", 30000));
+		this.inboundThreads = Math.max(1, pf.getInt("inbound_threads", Math.min(4, Runtime.getRuntime().availableProcessors())));
+		this.routeCacheSize = Math.max(0, pf.getInt("route_cache_size", 256));
+		this.routingUpdateWindow = Math.max(0, pf.getInt("routing_update_window_ms", 100));
+		this.routingUpdateMinInterval = Math.max(0, pf.getInt("routing_update_min_interval_ms", 500));
+		this.routingUpdateMaxDelay = Math.max(routingUpdateWindow, pf.getInt("routing_update_max_delay_ms", 2000));
+		this.handshakeThreads = Math.max(1, pf.getInt("handshake_threads", 4));
+		this.handshakeQueueSize = Math.max(1, pf.getInt("handshake_queue_size", 32));
+		this.handshakesPerAddress = Math.max(1, pf.getInt("handshakes_per_address", 8));
+		this.handshakeTimeout = Math.max(1000, pf.getInt("handshake_timeout_ms", 10000));
+		this.tlsProtocols = SSLContextManager.parseList(pf.getString("tls_protocols", defaultTlsProtocols));
+		this.tlsCipherSuites = SSLContextManager.parseList(pf.getString("tls_cipher_suites", defaultTlsCipherSuites));
+
+		if(!KillableThread.setVirtualThreads(virtualThreads)) {
+			log("Virtual threads are not supported by this JVM, using platform threads");
+		} else if(virtualThreads) {
+			log("Using virtual threads for background tasks");
+		}
 
 		String adminString = pf.getString("admin_list", "");
 		for( String current : adminString.split(",")) {
@@ -302,7 +398,6 @@ public class EventLink extends JavaPlugin {
 							this,
 							commandSender,
 							serverName,
-							new File(pluginDirectory + slash + serverKeys), 
 							new File(pluginDirectory + slash + clientKeys),
 							password,
 							SSLUtils.getHostname(args[1]),
@@ -312,14 +407,13 @@ public class EventLink extends JavaPlugin {
 					return true;
 				}
 			} else if(args[0].equals("list")) {
-				Enumeration<String> aliases = SSLUtils.getAliases(new File(pluginDirectory + slash + clientKeys), password);
-				if(!aliases.hasMoreElements()) {
+				List<String> aliases = peerRegistry.getAliases();
+				if(aliases.isEmpty()) {
 					commandSender.sendMessage("No trusted servers added");
 					return true;
 				} else {
 					commandSender.sendMessage("Trusted servers: (*=connected)");
-					while(aliases.hasMoreElements()) {
-						String current = aliases.nextElement();
+					for(String current : aliases) {
 						String currentServerName = (current.split(";"))[0];
 						if(current.contains(";")) {
 							current = "<" + current.replaceFirst(";", "> ");
@@ -333,9 +427,28 @@ public class EventLink extends JavaPlugin {
 				}
 			} else if(args.length>1 && (args[0].equals("delete") || args[0].equals("del"))) {
 				commandSender.sendMessage(SSLUtils.removeCertificate(new File(pluginDirectory + slash + clientKeys), this.password, args[1]));
+				peerRegistry.invalidate();
 				commandSender.sendMessage(connectionManager.deleteConnection(args[1]));
 				eventLinkServer.reload();
 				return true;
+			} else if(args[0].equals("stats")) {
+				if(connectionManager != null) {
+					for(String line : connectionManager.getStats()) {
+						commandSender.sendMessage(line);
+					}
+				}
+				if(eventLinkServer != null) {
+					commandSender.sendMessage(eventLinkServer.getStats());
+				}
+				return true;
+			} else if(args[0].equals("tlsbench")) {
+				if(sslContextManager == null) {
+					commandSender.sendMessage("TLS is not set up");
+				} else {
+					commandSender.sendMessage("Starting TLS benchmark, results are also sent to the log");
+					new TlsBenchmark(this, commandSender).start();
+				}
+				return true;
 			} else if(args[0].equals("routes")) {
 				routingTableManager.listTablesToLog();
 				return true;
@@ -350,7 +463,7 @@ public class EventLink extends JavaPlugin {
 				for(int cnt=0;cnt<args.length-1;cnt++) {
 					targets[cnt] = args[cnt+1];
 				}
-				if(!connectionManager.sendObject(targets, new Ping(((Player)commandSender).getName()))) {
+				if(!connectionManager.sendObject(targets, new Ping(((Player)commandSender).getName()), true)) {
 					if(args.length==2) {
 						commandSender.sendMessage(args[1] + " is not a valid ping target");
 					} else {
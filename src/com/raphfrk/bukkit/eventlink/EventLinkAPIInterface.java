@@ -21,6 +21,8 @@
  ******************************************************************************/
 package com.raphfrk.bukkit.eventlink;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Set;
 
 import org.bukkit.entity.Player;
@@ -41,19 +43,55 @@ public class EventLinkAPIInterface implements EventLinkAPI {
 	}
 
 	public boolean sendEvent(String target, Event event) {
+		return sendEvent(target, event, false);
+	}
+
+	public boolean sendEvent(String[] target, Event event) {
+		return sendEvent(target, event, false);
+	}
+
+	// Urgent events skip write batching and are flushed to the socket straight away
+	
+	public boolean sendEvent(String target, Event event, boolean urgent) {
 		if(p.connectionManager==null) {
 			return false;
 		}
-		return p.connectionManager.sendObject(target, event);
+		return p.connectionManager.sendObject(target, event, urgent);
 	}
 
-	public boolean sendEvent(String[] target, Event event) {
+	public boolean sendEvent(String[] target, Event event, boolean urgent) {
 		if(p.connectionManager==null) {
 			return false;
 		}
-		return p.connectionManager.sendObject(target, event);
+		return p.connectionManager.sendObject(target, event, urgent);
+	}
+
+	// Lower priorities give way to higher ones on busy links, see SendPriority
+
+	public boolean sendEvent(String target, Event event, SendPriority priority) {
+		if(p.connectionManager==null) {
+			return false;
+		}
+		return p.connectionManager.sendObject(target, event, priority);
+	}
+
+	public boolean sendEvent(String[] target, Event event, SendPriority priority) {
+		if(p.connectionManager==null) {
+			return false;
+		}
+		return p.connectionManager.sendObject(target, event, priority);
 	}
 	
+	// Opens a stream of data to another server, which gets an EventLinkStreamEvent for it
+	// Writes block while the reader is behind, so don't write from the main thread
+
+	public OutputStream openStream(String target, String channel) throws IOException {
+		if(p.connectionManager==null) {
+			throw new IOException("Not connected");
+		}
+		return p.connectionManager.streamManager.open(target, channel);
+	}
+
 	public boolean addRouteEntry(String table, String name) {
 		return p.routingTableManager.addEntry(table, name);
 	}
@@ -28,14 +28,15 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.security.Principal;
 import java.security.cert.Certificate;
 
-import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.TrustManager;
 
 import org.bukkit.command.CommandSender;
 
@@ -52,9 +53,9 @@ public class EventLinkClient {
 	final private int portnum;
 	final String hostname;
 
-	final private KeyManager[] keyManagers;
-
-	final TrustManager trustManager;
+	// Shared with the server, unless this is an invite
+	final SSLContext sslContext;
+	final SSLParameters sslParameters;
 
 	final String password;
 	final File clientFile;
@@ -67,7 +68,7 @@ public class EventLinkClient {
 	
 	final boolean invite;
 
-	EventLinkClient(EventLink p, CommandSender commandSender, String serverName, File serverFile, File trustFile, String password, String hostname, int portnum, boolean invite) {
+	EventLinkClient(EventLink p, CommandSender commandSender, String serverName, File trustFile, String password, String hostname, int portnum, boolean invite) {
 
 		this.p = p;
 		
@@ -85,21 +86,19 @@ public class EventLinkClient {
 		
 		this.serverName = serverName;
 
-		keyManagers = SSLUtils.getKeyManagers(serverFile, password);
-
 		this.trustFile = trustFile;
 		
 		if(!invite) {
-			trustManager = new ReloadableTrustManager(trustFile, password);
+			sslContext = p.sslContextManager.getContext();
+			sslParameters = p.sslContextManager.getParameters();
 		} else {
-			trustManager = new TrustingTrustManager();
+			sslContext = SSLUtils.getSSLContext(null, new TrustingTrustManager());
+			sslParameters = null;
 		}
 
 		clientRunnable = new ClientRunnable();
 
-		t = new Thread(clientRunnable);
-
-		t.setName("Event Link Client: " + hostname + ":" + portnum);
+		t = KillableThread.newThread(clientRunnable, "Event Link Client: " + hostname + ":" + portnum);
 		
 		t.start();
 
@@ -109,9 +108,15 @@ public class EventLinkClient {
 
 		public void run() {
 			
-			final KeyManager[] keyManagersLocal = invite?null:keyManagers;
-
-			Socket socket = SSLUtils.getSSLSocket(hostname, portnum, keyManagersLocal, trustManager);
+			// Invites stay on SSLSocket, they only fetch the certificate
+			SSLEngineStreams engineStreams = null;
+			Socket socket;
+			if(p.nioTransport != null && !invite) {
+				engineStreams = SSLUtils.getSSLEngineStreams(hostname, portnum, sslContext, sslParameters);
+				socket = engineStreams == null ? null : engineStreams.getSocket();
+			} else {
+				socket = SSLUtils.getSSLSocket(hostname, portnum, sslContext, sslParameters);
+			}
 
 			if(socket==null) {
 				MiscUtils.sendAsyncMessage(p, p.server, commandSender, "Unable to connect to " + hostname + ":" + portnum);
@@ -126,9 +131,23 @@ public class EventLinkClient {
 
 			Object peerNameObject;			
 
-			SSLSession sslSession = ((SSLSocket)socket).getSession();
-
 			try {
+
+				SSLSession sslSession;
+				InputStream socketIn;
+				OutputStream socketOut;
+
+				if(engineStreams == null) {
+					sslSession = ((SSLSocket)socket).getSession();
+					socketIn = socket.getInputStream();
+					socketOut = socket.getOutputStream();
+				} else {
+					engineStreams.handshake();
+
+					sslSession = engineStreams.getSession();
+					socketIn = engineStreams.getInputStream();
+					socketOut = engineStreams.getOutputStream();
+				}
 				
 				Certificate[] certs = null;
 
@@ -145,12 +164,9 @@ public class EventLinkClient {
 
 				}
 
-				OutputStream socketOut = socket.getOutputStream();
-				InputStream socketIn = socket.getInputStream(); 
-
 				peer = sslSession.getPeerPrincipal();
 				
-				ObjectOutputStream out = new ObjectOutputStream(socketOut);
+				ObjectOutputStream out = new ObjectOutputStream(new DeferredOutputStream(socketOut));
 
 				p.log("Sending server name: " + serverName);
 				
@@ -180,6 +196,7 @@ public class EventLinkClient {
 				
 					if(certs!=null) {
 						if(SSLUtils.addCertificate(trustFile, password, alias, certs[0])) {
+							p.peerRegistry.invalidate();
 							MiscUtils.sendAsyncMessage(p, p.server, commandSender, peerName + " added to trust store");
 							p.eventLinkServer.reload();
 						}
@@ -189,7 +206,9 @@ public class EventLinkClient {
 					return;
 				}
 				
-				p.connectionManager.addConnection(peerName, socket, in, out);
+				WireOptions wireOptions = WireOptions.exchange(p, socket, in, out, serverName, peerName);
+
+				p.connectionManager.addConnection(peerName, socket, in, out, wireOptions, engineStreams);
 
 
 			} catch (SSLPeerUnverifiedException pue) {
@@ -198,6 +217,10 @@ public class EventLinkClient {
 				p.log("Unable to auth target server: " + hostname + ":" + portnum );
 				MiscUtils.sendAsyncMessage(p, p.server, commandSender, "Unable to auth target server");
 				SSLUtils.closeSocket(socket);
+			} catch (SocketTimeoutException ste) {
+				p.log("Timed out waiting for wire format from " + hostname + ":" + portnum);
+				SSLUtils.closeSocket(socket);
+				return;
 			} catch (IOException ioe) {
 				ioe.printStackTrace();
 				SSLUtils.closeSocket(socket);
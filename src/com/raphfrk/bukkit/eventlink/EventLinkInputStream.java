@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Receiving end of an EventLinkOutputStream, handed out by EventLinkStreamEvent
+// Each chunk is acked once it has been read, which lets the sender continue
+
+public class EventLinkInputStream extends InputStream {
+
+	private static final byte[] endOfStream = new byte[0];
+
+	private final StreamManager manager;
+
+	final String sourceServer;
+	final long streamId;
+
+	private final int window;
+	private final long timeout;
+
+	private final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<byte[]>();
+
+	// Only used by the inbound thread for the source
+	private int expected = 0;
+
+	private volatile boolean aborted = false;
+
+	// For the idle check, a stream nobody reads is aborted by the StreamManager
+	private volatile long lastRead = System.currentTimeMillis();
+	private volatile boolean waiting = false;
+
+	private byte[] current = null;
+	private int position = 0;
+	private int consumed = 0;
+	private boolean finished = false;
+
+	EventLinkInputStream(StreamManager manager, String sourceServer, long streamId, int window, long timeout) {
+		this.manager = manager;
+		this.sourceServer = sourceServer;
+		this.streamId = streamId;
+		this.window = window;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int offset, int length) throws IOException {
+		lastRead = System.currentTimeMillis();
+		if(length == 0) {
+			return 0;
+		}
+		if(!fill()) {
+			return -1;
+		}
+		int count = Math.min(length, current.length - position);
+		System.arraycopy(current, position, b, offset, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public synchronized int available() {
+		return current == null ? 0 : current.length - position;
+	}
+
+	// Closing before the end tells the sender to stop
+
+	@Override
+	public synchronized void close() {
+		if(!finished) {
+			finished = true;
+			manager.abort(this);
+		}
+	}
+
+	private boolean fill() throws IOException {
+		while(current == null || position >= current.length) {
+			if(finished) {
+				return false;
+			}
+			if(current != null) {
+				current = null;
+				manager.ack(this, ++consumed);
+			}
+			byte[] next;
+			waiting = true;
+			try {
+				next = chunks.poll(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading stream from " + sourceServer);
+			} finally {
+				waiting = false;
+				lastRead = System.currentTimeMillis();
+			}
+			if(aborted) {
+				finished = true;
+				throw new IOException("Stream from " + sourceServer + " was aborted");
+			} else if(next == null) {
+				close();
+				throw new IOException("Timed out reading stream from " + sourceServer);
+			} else if(next == endOfStream) {
+				finished = true;
+				manager.remove(this);
+				return false;
+			}
+			current = next;
+			position = 0;
+		}
+		return true;
+	}
+
+	// Called by the inbound thread, returns false if the packet doesn't fit the stream
+
+	boolean offer(StreamPacket packet) {
+		if(packet.sequence != expected) {
+			return false;
+		}
+		if(packet.type == StreamPacket.typeClose) {
+			chunks.offer(endOfStream);
+			return true;
+		}
+		if(packet.data == null || chunks.size() >= window) {
+			return false;
+		}
+		expected++;
+		chunks.offer(packet.data);
+		return true;
+	}
+
+	void remoteAbort() {
+		aborted = true;
+		chunks.offer(endOfStream);
+	}
+
+	boolean isIdle(long now) {
+		return !waiting && now - lastRead > timeout;
+	}
+
+	// Drops the buffered chunks, a reader that turns up later gets an abort
+
+	void expire() {
+		aborted = true;
+		chunks.clear();
+		chunks.offer(endOfStream);
+	}
+
+}
@@ -61,7 +61,7 @@ public class EventLinkMessageEvent extends Event implements Serializable {
 
 		String playerLocation = p.eventLinkAPIInterface.getEntryLocation("players", playerName);
 		if(playerLocation != null) {
-			p.eventLinkAPIInterface.sendEvent(playerLocation, new EventLinkMessageEvent(fromPlayer, playerName, message));
+			p.eventLinkAPIInterface.sendEvent(playerLocation, new EventLinkMessageEvent(fromPlayer, playerName, message), true);
 			return true;
 		} else {
 			return false;
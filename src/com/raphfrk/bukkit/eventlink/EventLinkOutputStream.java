@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Sends data to another server in chunks, opened through EventLinkAPIInterface.openStream
+//
+// At most window chunks are in flight, writes block until the reader acks earlier chunks,
+// so neither end holds more than window chunks of the transfer in memory.
+// Chunks go in the LOW lane, so other traffic on the link isn't held up.
+
+public class EventLinkOutputStream extends OutputStream {
+
+	private final StreamManager manager;
+
+	final String target;
+	final long streamId;
+
+	private final byte[] buffer;
+	private final int window;
+	private final long timeout;
+
+	private int count = 0;
+	private int sequence = 0;
+	private int acked = 0;
+
+	private boolean aborted = false;
+	private boolean closed = false;
+
+	EventLinkOutputStream(StreamManager manager, String target, long streamId, int chunkSize, int window, long timeout) {
+		this.manager = manager;
+		this.target = target;
+		this.streamId = streamId;
+		this.buffer = new byte[chunkSize];
+		this.window = window;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		checkOpen();
+		if(count == buffer.length) {
+			sendChunk();
+		}
+		buffer[count++] = (byte)b;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int offset, int length) throws IOException {
+		checkOpen();
+		while(length > 0) {
+			if(count == buffer.length) {
+				sendChunk();
+			}
+			int copy = Math.min(length, buffer.length - count);
+			System.arraycopy(b, offset, buffer, count, copy);
+			count += copy;
+			offset += copy;
+			length -= copy;
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		checkOpen();
+		if(count > 0) {
+			sendChunk();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		try {
+			flush();
+			if(!manager.send(target, new StreamPacket(streamId, StreamPacket.typeClose, sequence, null, null), SendPriority.LOW)) {
+				throw new IOException("Unable to send stream close to " + target);
+			}
+		} finally {
+			closed = true;
+			manager.remove(this);
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if(aborted) {
+			throw new IOException("Stream to " + target + " was aborted");
+		} else if(closed) {
+			throw new IOException("Stream to " + target + " is closed");
+		}
+	}
+
+	private void sendChunk() throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while(sequence - acked >= window) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				fail("Timed out waiting for " + target + " to read the stream");
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail(null);
+				throw new InterruptedIOException("Interrupted while waiting for " + target);
+			}
+			checkOpen();
+		}
+		byte[] data = Arrays.copyOf(buffer, count);
+		if(!manager.send(target, new StreamPacket(streamId, StreamPacket.typeData, sequence, null, data), SendPriority.LOW)) {
+			fail("Unable to send stream data to " + target);
+		}
+		sequence++;
+		count = 0;
+	}
+
+	// Tells the reader the transfer is over, throws if a message is given
+
+	private void fail(String message) throws IOException {
+		aborted = true;
+		manager.abort(this);
+		if(message != null) {
+			throw new IOException(message);
+		}
+	}
+
+	// Called by the inbound threads
+
+	synchronized void ack(int consumed) {
+		if(consumed > acked) {
+			acked = consumed;
+			notifyAll();
+		}
+	}
+
+	synchronized void remoteAbort() {
+		aborted = true;
+		notifyAll();
+	}
+
+}
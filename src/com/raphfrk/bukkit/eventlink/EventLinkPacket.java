@@ -21,6 +21,7 @@
  ******************************************************************************/
 package com.raphfrk.bukkit.eventlink;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Random;
@@ -55,6 +56,20 @@ public class EventLinkPacket implements Serializable {
 
 	EventLinkPacket(EventLinkPacket eventLinkPacket, String[] destinationServers) {
 		this(eventLinkPacket.sourceServer, destinationServers, eventLinkPacket.payload, eventLinkPacket.timeToLive, eventLinkPacket.requestConfirm, eventLinkPacket.confirmationPacket);
+		this.urgent = eventLinkPacket.urgent;
+		this.priority = eventLinkPacket.priority;
+	}
+	
+	// Used when decoding binary frames, keeps the id and timestamp from the wire
+	EventLinkPacket(String sourceServer, String[] destinationServers, Object payload, int timeToLive, boolean requestConfirm, boolean confirmationPacket, long idNum, long timeStamp) {
+		this.sourceServer = sourceServer;
+		this.destinationServers = destinationServers;
+		this.payload = payload;
+		this.timeToLive = timeToLive;
+		this.requestConfirm = requestConfirm;
+		this.confirmationPacket = confirmationPacket;
+		this.idNum = idNum;
+		this.timeStamp = timeStamp;
 	}
 	
 	EventLinkPacket(String sourceServer, String[] destinationServers, Object payload, int timeToLive, boolean requestConfirm, boolean confirmationPacket) {
@@ -87,6 +102,13 @@ public class EventLinkPacket implements Serializable {
 	private boolean confirmationPacket;
 	private final long idNum;
 	private long timeStamp = -1;
+	// Latency critical, the link flushes as soon as this is written instead of waiting to batch
+	private boolean urgent = false;
+	// Only set if the sender picked one, see getPriority
+	// Transient as releases without SendPriority have to be able to read legacy packets
+	private transient SendPriority priority = null;
+	// Payload already encoded for binary links, written in place of the payload
+	private transient RawPayload sharedPayload = null;
 	
 	public String toString() {
 		return sourceServer + "->" + Arrays.toString(destinationServers) + " [" + payload + "]";
@@ -116,6 +138,73 @@ public class EventLinkPacket implements Serializable {
 		this.timeStamp = timeStamp;
 	}
 	
+	boolean isUrgent() {
+		return urgent;
+	}
+	
+	void setUrgent(boolean urgent) {
+		this.urgent = urgent;
+	}
+	
+	SendPriority getPriority() {
+		if(priority != null) {
+			return priority;
+		} else if(urgent) {
+			return SendPriority.HIGH;
+		} else if(payload instanceof RoutingTable || payload instanceof RoutingUpdate || payload instanceof RoutingDigest) {
+			return SendPriority.LOW;
+		} else if(payload instanceof RawPayload && isRoutingTag(((RawPayload)payload).tag)) {
+			return SendPriority.LOW;
+		}
+		return SendPriority.NORMAL;
+	}
+	
+	private static boolean isRoutingTag(int tag) {
+		return tag == PacketCodec.tagRoutingTable || tag == PacketCodec.tagRoutingUpdate || tag == PacketCodec.tagRoutingDigest;
+	}
+	
+	boolean hasPriority() {
+		return priority != null;
+	}
+	
+	void setPriority(SendPriority priority) {
+		this.priority = priority;
+	}
+
+	RawPayload getSharedPayload() {
+		return sharedPayload;
+	}
+
+	void setSharedPayload(RawPayload sharedPayload) {
+		this.sharedPayload = sharedPayload;
+	}
+
+	// Called once the payload bytes have been copied, or if the packet won't be sent
+
+	void releaseSharedPayload() {
+		RawPayload shared = sharedPayload;
+		if(shared != null) {
+			sharedPayload = null;
+			shared.release();
+		}
+	}
+	
+	// Swaps a forwarded RawPayload for the real object, needed for local delivery and legacy links
+	EventLinkPacket decodeRawPayload() throws IOException, ClassNotFoundException {
+		if(!(payload instanceof RawPayload)) {
+			return this;
+		}
+		return withPayload(((RawPayload)payload).decode());
+	}
+	
+	// Same packet and id with a different payload object
+	EventLinkPacket withPayload(Object payload) {
+		EventLinkPacket packet = new EventLinkPacket(sourceServer, destinationServers, payload, timeToLive, requestConfirm, confirmationPacket, idNum, timeStamp);
+		packet.urgent = urgent;
+		packet.priority = priority;
+		return packet;
+	}
+	
 	//NOTE: need to reset connection due to object cache
 	
 }
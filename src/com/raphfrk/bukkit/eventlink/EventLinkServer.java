@@ -21,20 +21,26 @@
  ******************************************************************************/
 package com.raphfrk.bukkit.eventlink;
 
-import java.io.File;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.StreamCorruptedException;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.Principal;
 
-import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -47,51 +53,75 @@ public class EventLinkServer {
 	final EventLink p;
 
 	final String serverName;
-	
-	final File clientFile;
-	final String password;
 
 	final private int portnum;
-	final private KeyManager[] keyManagers;
-
-	final ReloadableTrustManager trustManager;
 
 	final ServerRunnable serverRunnable;
 	final Thread t;
 
-	EventLinkServer(EventLink p, String serverName, File serverFile, File trustFile, String password, int portnum) {
+	// Shared with the outgoing connections
+	final SSLContext sslContext;
+
+	final HandshakeExecutor handshakeExecutor;
+
+	// Only used with the NIO transport
+	final ServerSocketChannel serverChannel;
+
+	EventLinkServer(EventLink p, String serverName, int portnum) {
 
 		this.p = p;
 
 		this.serverName = serverName;
 		
 		this.portnum = portnum;
-		
-		this.clientFile = trustFile;
-		this.password = password;
 
-		keyManagers = SSLUtils.getKeyManagers(serverFile, password);
+		sslContext = p.sslContextManager.getContext();
 
-		trustManager = new ReloadableTrustManager(trustFile, password);
+		handshakeExecutor = new HandshakeExecutor(p, p.handshakeThreads, p.handshakeQueueSize, p.handshakesPerAddress, p.handshakeTimeout);
+
+		if(p.nioTransport != null) {
+			serverRunnable = null;
+			t = null;
+			if(sslContext == null) {
+				p.log("Keymanager exception");
+				serverChannel = null;
+			} else {
+				serverChannel = listen();
+			}
+			return;
+		}
+
+		serverChannel = null;
 
 		serverRunnable = new ServerRunnable();
 
-		t = new Thread(serverRunnable);
+		t = KillableThread.newThread(serverRunnable, "Event Link Server: port = " + portnum);
 
 		serverRunnable.setThread(t);
-		
-		t.setName("Event Link Server: port = " + portnum);
 
 		t.start();
 
 	}
 	
 	void reload() {
-		trustManager.reloadTrustStore(clientFile, password);
+		p.sslContextManager.reload();
+	}
+
+	String getStats() {
+		return handshakeExecutor.getStats();
 	}
 
 	boolean stop() {
 
+		handshakeExecutor.stop();
+
+		if(serverChannel != null) {
+			p.log("Stopping server on localhost " + portnum);
+			p.nioTransport.stopListening(serverChannel);
+			p.log("Server stopped");
+			return true;
+		}
+
 		if(t == null || serverRunnable == null) {
 			return false;
 		}
@@ -106,6 +136,41 @@ public class EventLinkServer {
 
 	}
 
+	private ServerSocketChannel listen() {
+
+		ServerSocketChannel channel = null;
+
+		try {
+			channel = ServerSocketChannel.open();
+			channel.socket().bind(new InetSocketAddress(portnum));
+			p.nioTransport.listen(channel, new NioTransport.AcceptHandler() {
+				public void accepted(final SocketChannel socketChannel) {
+					p.log("Socket received from " + socketChannel.socket().getInetAddress());
+
+					handshakeExecutor.submit(socketChannel.socket(), new HandshakeExecutor.Handshake() {
+						public void run(HandshakeExecutor.Deadline deadline) {
+							handleNewChannel(socketChannel, deadline);
+						}
+					});
+				}
+			});
+			p.log("Server started on port " + portnum + " (NIO transport)");
+			return channel;
+		} catch (BindException e) {
+			p.log("Unable to bind to " + portnum);
+		} catch (IOException e) {
+			p.log("IO exception starting server");
+		}
+
+		if(channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+		return null;
+
+	}
+
 	private class ServerRunnable implements Runnable {
 
 		private Object endSync = new Object();
@@ -146,12 +211,16 @@ public class EventLinkServer {
 			ServerSocket server;
 
 			try {
-				server = SSLUtils.getSSLServerSocket(p, portnum, keyManagers, trustManager);
+				server = SSLUtils.getSSLServerSocket(p, portnum, sslContext, p.sslContextManager.getParameters());
 			} catch (BindException e) {
 				p.log("Unable to bind to " + portnum);
 				return;
 			}
 
+			if(server == null) {
+				return;
+			}
+
 			try {
 				server.setSoTimeout(5000);
 			} catch (SocketException e2) {
@@ -200,14 +269,11 @@ public class EventLinkServer {
 
 				final Socket finalSocket = socket;
 				
-				Runnable r = new Runnable() {
-					public void run() {
-						handleNewConnection(finalSocket);
+				handshakeExecutor.submit(socket, new HandshakeExecutor.Handshake() {
+					public void run(HandshakeExecutor.Deadline deadline) {
+						handleNewConnection(finalSocket, null, deadline);
 					}
-				};
-				
-				Thread t2 = new Thread(r);
-				t2.start();
+				});
 
 			}
 
@@ -215,29 +281,72 @@ public class EventLinkServer {
 
 	}	
 
-	void handleNewConnection(Socket s) {
+	void handleNewChannel(SocketChannel channel, HandshakeExecutor.Deadline deadline) {
+
+		SSLEngineStreams engineStreams;
+
+		try {
+			channel.configureBlocking(true);
+			SSLEngine engine = sslContext.createSSLEngine();
+			engine.setSSLParameters(p.sslContextManager.getParameters());
+			engine.setUseClientMode(false);
+			engine.setWantClientAuth(true);
+			engineStreams = new SSLEngineStreams(channel, engine);
+		} catch (IOException e) {
+			p.log("Unable to set up TLS for " + channel.socket().getInetAddress());
+			SSLUtils.closeSocket(channel.socket());
+			return;
+		}
+
+		handleNewConnection(channel.socket(), engineStreams, deadline);
+
+	}
+
+	// engineStreams is only set for the NIO transport, the TLS handshake is done here in that case
+
+	void handleNewConnection(Socket s, SSLEngineStreams engineStreams, HandshakeExecutor.Deadline deadline) {
 
 		Principal peer = null;
 
 		Object peerNameObject;
 
 		try {
-			
-			((SSLSocket)s).setWantClientAuth(true);
 
-			SSLSession sslSession = ((SSLSocket)s).getSession();
+			SSLSession sslSession;
+			InputStream socketIn;
+			OutputStream socketOut;
+
+			if(engineStreams == null) {
+				((SSLSocket)s).setWantClientAuth(true);
+
+				sslSession = ((SSLSocket)s).getSession();
+				socketIn = s.getInputStream();
+				socketOut = s.getOutputStream();
+			} else {
+				engineStreams.handshake();
+
+				sslSession = engineStreams.getSession();
+				socketIn = engineStreams.getInputStream();
+				socketOut = engineStreams.getOutputStream();
+			}
 			
-			ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+			ObjectOutputStream out = new ObjectOutputStream(new DeferredOutputStream(socketOut));
 
 			out.writeObject(serverName);
 			out.flush();
 			
-			ObjectInputStream in = new ObjectInputStream(s.getInputStream());
+			ObjectInputStream in = new ObjectInputStream(socketIn);
 
 			peerNameObject = in.readObject();
 			
 			peer = sslSession.getPeerPrincipal();
 
+			if(!p.sslContextManager.isTrusted(sslSession)) {
+				p.log("Certificate for " + peer + " is no longer trusted, closing connection");
+				SSLUtils.closeSocket(s);
+				return;
+			}
+
 			if(peerNameObject == null ) {
 				p.log("null object received, closing connection");
 				SSLUtils.closeSocket(s);
@@ -256,7 +365,14 @@ public class EventLinkServer {
 				return;
 			}
 
-			p.connectionManager.addConnection((String)peerNameObject, s, in, out);
+			WireOptions wireOptions = WireOptions.exchange(p, s, in, out, serverName, (String)peerNameObject);
+
+			if(!deadline.complete()) {
+				SSLUtils.closeSocket(s);
+				return;
+			}
+
+			p.connectionManager.addConnection((String)peerNameObject, s, in, out, wireOptions, engineStreams);
 
 		} catch (StreamCorruptedException sce) {
 			p.log( "Not a valid object stream (corrupted?), closing stream");
@@ -276,7 +392,19 @@ public class EventLinkServer {
 			//ssle.printStackTrace();
 			SSLUtils.closeSocket(s);
 			return;
+		} catch (SocketTimeoutException ste) {
+			p.log("Timed out waiting for wire format from " + s.getInetAddress() + ", closing connection");
+			SSLUtils.closeSocket(s);
+			return;
+		} catch (EOFException eof) {
+			p.log("Connection from " + s.getInetAddress() + " closed during handshake");
+			SSLUtils.closeSocket(s);
+			return;
 		} catch (IOException ioe) {
+			if(!deadline.complete()) {
+				// Closed by the deadline, already logged
+				return;
+			}
 			ioe.printStackTrace();
 			SSLUtils.closeSocket(s);
 			return;
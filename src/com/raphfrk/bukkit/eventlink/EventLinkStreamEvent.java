@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.Serializable;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+// Called on the main thread when another server opens a stream to this one
+// The stream should be read on a separate thread, reads block until the data arrives.
+// Streams nobody reads for the stream timeout are aborted and their data dropped.
+
+public class EventLinkStreamEvent extends Event implements Serializable {
+	transient private static final HandlerList handlers = new HandlerList();
+	private static final long serialVersionUID = 1L;
+	private final String sourceServer;
+	private final String channel;
+	transient private final EventLinkInputStream inputStream;
+
+	EventLinkStreamEvent(String sourceServer, String channel, EventLinkInputStream inputStream) {
+		this.sourceServer = sourceServer;
+		this.channel = channel;
+		this.inputStream = inputStream;
+	}
+
+	public String getSourceServer() {
+		return sourceServer;
+	}
+
+	public String getChannel() {
+		return channel;
+	}
+
+	public EventLinkInputStream getInputStream() {
+		return inputStream;
+	}
+
+	@Override
+	public HandlerList getHandlers() {
+		return handlers;
+	}
+
+	public static HandlerList getHandlerList() {
+		return handlers;
+	}
+}
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs the server side of incoming handshakes on a bounded pool
+//
+// A socket is turned away straight after accept, before any TLS work, if its address already
+// has maxPerAddress handshakes queued or running, or if the queue is full. Each handshake has
+// a deadline counted from the accept, so time spent in the queue counts against it, and a
+// watchdog closes the socket if the handshake is still going when the deadline passes.
+
+public class HandshakeExecutor {
+
+	private final EventLink p;
+	private final int maxPerAddress;
+	private final long timeout;
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledThreadPoolExecutor watchdog;
+
+	private final HashMap<InetAddress,Integer> perAddress = new HashMap<InetAddress,Integer>();
+
+	// Deadlines of handshakes that are queued or running, expired on stop
+	private final Set<Deadline> outstanding = Collections.newSetFromMap(new ConcurrentHashMap<Deadline,Boolean>());
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejectedAddress = new AtomicLong();
+	private final AtomicLong rejectedQueue = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong queueWaitTotal = new AtomicLong();
+	private volatile long queueWaitMax = 0;
+
+	HandshakeExecutor(EventLink p, int threads, int queueSize, int maxPerAddress, long timeout) {
+
+		this.p = p;
+		this.maxPerAddress = maxPerAddress;
+		this.timeout = timeout;
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory threadFactory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return KillableThread.newThread(r, "Event Link Handshake " + threadCount.incrementAndGet());
+			}
+		};
+
+		executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+
+		watchdog = new ScheduledThreadPoolExecutor(1, threadFactory);
+		watchdog.setRemoveOnCancelPolicy(true);
+
+	}
+
+	interface Handshake {
+		void run(Deadline deadline);
+	}
+
+	static class Deadline {
+
+		private final Socket socket;
+		final long acceptTime;
+
+		private final AtomicBoolean finished = new AtomicBoolean(false);
+		private volatile ScheduledFuture<?> future = null;
+
+		Deadline(Socket socket, long acceptTime) {
+			this.socket = socket;
+			this.acceptTime = acceptTime;
+		}
+
+		// Called before the connection is handed over, false if the deadline has already closed the socket
+
+		boolean complete() {
+			if(!finished.compareAndSet(false, true)) {
+				return false;
+			}
+			ScheduledFuture<?> current = future;
+			if(current != null) {
+				current.cancel(false);
+			}
+			return true;
+		}
+
+		private boolean expire() {
+			if(!finished.compareAndSet(false, true)) {
+				return false;
+			}
+			SSLUtils.closeSocket(socket);
+			return true;
+		}
+
+	}
+
+	// Returns false if the socket was turned away, it is closed in that case
+
+	boolean submit(Socket socket, final Handshake handshake) {
+
+		final InetAddress address = socket.getInetAddress();
+		final Deadline deadline = new Deadline(socket, System.currentTimeMillis());
+
+		if(!reserve(address)) {
+			rejectedAddress.incrementAndGet();
+			p.log("Too many handshakes in progress from " + address + ", closing connection");
+			SSLUtils.closeSocket(socket);
+			return false;
+		}
+
+		outstanding.add(deadline);
+
+		try {
+			executor.execute(new HandshakeTask(address, deadline, handshake));
+		} catch (RejectedExecutionException e) {
+			outstanding.remove(deadline);
+			release(address);
+			rejectedQueue.incrementAndGet();
+			p.log("Handshake queue full, closing connection from " + address);
+			SSLUtils.closeSocket(socket);
+			return false;
+		}
+
+		accepted.incrementAndGet();
+		return true;
+
+	}
+
+	private class HandshakeTask implements Runnable {
+
+		private final InetAddress address;
+		private final Deadline deadline;
+		private final Handshake handshake;
+
+		HandshakeTask(InetAddress address, Deadline deadline, Handshake handshake) {
+			this.address = address;
+			this.deadline = deadline;
+			this.handshake = handshake;
+		}
+
+		public void run() {
+			try {
+				runHandshake(address, deadline, handshake);
+			} finally {
+				finish();
+			}
+		}
+
+		void finish() {
+			deadline.complete();
+			outstanding.remove(deadline);
+			release(address);
+		}
+
+	}
+
+	private void runHandshake(final InetAddress address, final Deadline deadline, Handshake handshake) {
+
+		long wait = System.currentTimeMillis() - deadline.acceptTime;
+		started.incrementAndGet();
+		queueWaitTotal.addAndGet(wait);
+		if(wait > queueWaitMax) {
+			queueWaitMax = wait;
+		}
+
+		if(wait >= timeout) {
+			if(deadline.expire()) {
+				timedOut.incrementAndGet();
+				p.log("Handshake from " + address + " waited " + wait + "ms in the queue, closing connection");
+			}
+			return;
+		}
+
+		try {
+			deadline.future = watchdog.schedule(new Runnable() {
+				public void run() {
+					if(deadline.expire()) {
+						timedOut.incrementAndGet();
+						p.log("Handshake from " + address + " timed out, closing connection");
+					}
+				}
+			}, timeout - wait, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+			deadline.expire();
+			return;
+		}
+
+		handshake.run(deadline);
+
+	}
+
+	private boolean reserve(InetAddress address) {
+		synchronized(perAddress) {
+			Integer count = perAddress.get(address);
+			int current = count == null ? 0 : count;
+			if(current >= maxPerAddress) {
+				return false;
+			}
+			perAddress.put(address, current + 1);
+			return true;
+		}
+	}
+
+	private void release(InetAddress address) {
+		synchronized(perAddress) {
+			Integer count = perAddress.get(address);
+			if(count == null || count <= 1) {
+				perAddress.remove(address);
+			} else {
+				perAddress.put(address, count - 1);
+			}
+		}
+	}
+
+	String getStats() {
+		long startedCount = started.get();
+		long averageWait = startedCount == 0 ? 0 : queueWaitTotal.get() / startedCount;
+		return "Handshakes: " + accepted.get() + " accepted, " +
+				rejectedAddress.get() + " over the per address limit, " +
+				rejectedQueue.get() + " queue full, " +
+				timedOut.get() + " timed out, queue wait " + averageWait + "ms average, " + queueWaitMax + "ms max";
+	}
+
+	// Closes the sockets of queued handshakes, which never get to run, and of the running ones,
+	// since the watchdog stops with the pool
+
+	void stop() {
+		List<Runnable> queued = executor.shutdownNow();
+		watchdog.shutdownNow();
+		for(Runnable r : queued) {
+			if(r instanceof HandshakeTask) {
+				HandshakeTask task = (HandshakeTask)r;
+				task.deadline.expire();
+				task.finish();
+			}
+		}
+		for(Deadline deadline : outstanding) {
+			deadline.expire();
+		}
+		outstanding.clear();
+	}
+
+}
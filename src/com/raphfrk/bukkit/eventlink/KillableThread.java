@@ -21,9 +21,89 @@
  ******************************************************************************/
 package com.raphfrk.bukkit.eventlink;
 
-public class KillableThread extends Thread {
-	
-	private boolean killed = false;
+import java.lang.reflect.Method;
+
+// Background loop that can be killed from another thread by interrupting it
+//
+// Subclasses implement run() and poll killed(). The loop runs on its own platform thread,
+// or on a virtual thread if virtual_threads is set and the JVM has them (Java 21+), which
+// keeps the blocking style of the loops while making an idle thread cheap.
+
+public abstract class KillableThread implements Runnable {
+
+	private static final Method ofVirtual;
+	private static final Method unstarted;
+
+	static {
+		Method builder = null;
+		Method start = null;
+		try {
+			builder = Thread.class.getMethod("ofVirtual");
+			start = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			builder = null;
+			start = null;
+		}
+		ofVirtual = builder;
+		unstarted = start;
+	}
+
+	private static volatile boolean virtualThreads = false;
+
+	// Returns false if the JVM has no virtual threads, platform threads are used in that case
+
+	static boolean setVirtualThreads(boolean enabled) {
+		virtualThreads = enabled && ofVirtual != null;
+		return virtualThreads || !enabled;
+	}
+
+	static boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	// Creates an unstarted thread of the configured type
+
+	static Thread newThread(Runnable runnable, String name) {
+		return newThread(runnable, name, true);
+	}
+
+	private static Thread newThread(Runnable runnable, String name, boolean allowVirtual) {
+		if(allowVirtual && virtualThreads) {
+			try {
+				Thread t = (Thread)unstarted.invoke(ofVirtual.invoke(null), runnable);
+				if(name != null) {
+					t.setName(name);
+				}
+				return t;
+			} catch (Exception e) {
+				virtualThreads = false;
+			}
+		}
+		Thread t = new Thread(runnable);
+		if(name != null) {
+			t.setName(name);
+		}
+		return t;
+	}
+
+	private final boolean allowVirtual;
+
+	private volatile boolean killed = false;
+
+	private volatile Thread thread = null;
+
+	private String name = null;
+	private boolean daemon = false;
+
+	protected KillableThread() {
+		this(true);
+	}
+
+	// Loops that block in ways that tie up a carrier thread, such as a selector, pass false
+
+	protected KillableThread(boolean allowVirtual) {
+		this.allowVirtual = allowVirtual;
+	}
 
 	public boolean killed() {
 		if(Thread.interrupted()) {
@@ -41,5 +121,60 @@ public class KillableThread extends Thread {
 		Thread.interrupted();
 		killed = false;
 	}
+
+	public synchronized void start() {
+		if(thread != null) {
+			throw new IllegalThreadStateException("Already started: " + name);
+		}
+		Thread t = newThread(this, name, allowVirtual);
+		if(daemon && !t.isDaemon()) {
+			t.setDaemon(true);
+		}
+		thread = t;
+		t.start();
+	}
+
+	public void interrupt() {
+		Thread t = thread;
+		if(t != null) {
+			t.interrupt();
+		}
+	}
+
+	public boolean isAlive() {
+		Thread t = thread;
+		return t != null && t.isAlive();
+	}
+
+	public void join() throws InterruptedException {
+		Thread t = thread;
+		if(t != null) {
+			t.join();
+		}
+	}
+
+	public void join(long millis) throws InterruptedException {
+		Thread t = thread;
+		if(t != null) {
+			t.join(millis);
+		}
+	}
+
+	public synchronized void setName(String name) {
+		this.name = name;
+		if(thread != null) {
+			thread.setName(name);
+		}
+	}
+
+	public synchronized String getName() {
+		return name;
+	}
+
+	// Virtual threads are always daemon threads
+
+	public synchronized void setDaemon(boolean daemon) {
+		this.daemon = daemon;
+	}
 	
 }
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Send queue of a connection, one SendQueue per SendPriority
+//
+// The writer takes from the lanes by weighted round robin: each lane may send up to its
+// weight in packets or fragments per round, and a new round starts once no lane with
+// credit left has anything to send. Only the writer thread may poll.
+//
+// Frames from lanes below HIGH that are larger than the fragment size are split, the rest
+// of the frame is kept here and sent a fragment at a time as the lane gets its turn.
+
+public class LaneQueue {
+
+	private final EventLink p;
+	private final String serverName;
+	private final SendQueue<EventLinkPacket>[] lanes;
+	private final int[] weights;
+	private final int[] credits;
+
+	private final int fragmentSize;
+
+	// Rest of a fragmented frame, by lane, in a pooled buffer
+	private final WireBuffer[] partial;
+	private final int[] partialOffset;
+
+	private boolean lastUrgent = false;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	LaneQueue(EventLink p, String serverName) {
+		this.p = p;
+		this.serverName = serverName;
+		int count = SendPriority.values().length;
+		lanes = new SendQueue[count];
+		for(int cnt = 0; cnt < count; cnt++) {
+			lanes[cnt] = new SendQueue<EventLinkPacket>(p.sendQueueSize, p.sendQueuePolicy, p.sendQueueBlockTime);
+		}
+		weights = p.priorityWeights.length == count ? p.priorityWeights.clone() : SendPriority.parseWeights(null);
+		credits = weights.clone();
+		fragmentSize = p.fragmentSize;
+		partial = new WireBuffer[count];
+		partialOffset = new int[count];
+	}
+
+	// The server thread and the threads reading from peers never wait for queue space
+
+	SendResult offer(EventLinkPacket packet, Connection connection) {
+		boolean mayBlock = Thread.currentThread() != p.mainThread && !SendQueue.isNonBlocking();
+		return lanes[packet.getPriority().ordinal()].offer(packet, connection, mayBlock);
+	}
+
+	void wakeProducers() {
+		for(SendQueue<EventLinkPacket> lane : lanes) {
+			lane.wakeProducers();
+		}
+	}
+
+	boolean isEmpty() {
+		for(int lane = 0; lane < lanes.length; lane++) {
+			if(hasWork(lane)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Whether the packet or frame returned by the last poll was urgent
+	boolean wasUrgent() {
+		return lastUrgent;
+	}
+
+	// Used on links that send serialized objects, returns null on timeout
+
+	EventLinkPacket poll(long waitMillis) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+		while(true) {
+			int lane = nextLane();
+			if(lane >= 0) {
+				EventLinkPacket next = lanes[lane].tryPoll();
+				if(next != null) {
+					lastUrgent = next.isUrgent();
+					return next;
+				}
+			} else if(!await(deadline)) {
+				return null;
+			}
+		}
+	}
+
+	// Returns the next frame or fragment to write, encoded and possibly compressed by the link's codec
+	// The buffer is only valid until the codec is used again
+
+	WireBuffer pollFrame(PacketCodec codec, long waitMillis) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+		while(true) {
+			int lane = nextLane();
+			if(lane < 0) {
+				if(!await(deadline)) {
+					return null;
+				}
+				continue;
+			}
+			if(partial[lane] != null) {
+				lastUrgent = false;
+				return codec.compress(nextFragment(codec, lane, false));
+			}
+			EventLinkPacket next = lanes[lane].tryPoll();
+			if(next == null) {
+				continue;
+			}
+			WireBuffer frame;
+			try {
+				synchronized(next.payload) {
+					frame = codec.encode(next);
+				}
+			} catch (IOException e) {
+				p.log("Unable to encode packet for " + serverName + ": " + e);
+				continue;
+			} finally {
+				next.releaseSharedPayload();
+			}
+			lastUrgent = next.isUrgent();
+			if(lane == 0 || !codec.supportsFragments() || frame.limit <= fragmentSize) {
+				return codec.compress(frame);
+			}
+			WireBuffer copy = PacketCodec.framePool.acquire();
+			copy.writeBytes(frame.data, 0, frame.limit);
+			partial[lane] = copy;
+			partialOffset[lane] = 0;
+			return codec.compress(nextFragment(codec, lane, true));
+		}
+	}
+
+	private WireBuffer nextFragment(PacketCodec codec, int lane, boolean first) {
+		WireBuffer frame = partial[lane];
+		int offset = partialOffset[lane];
+		int remaining = frame.limit - offset;
+		// The first fragment has to carry the whole header
+		int length = Math.min(remaining, first ? Math.max(fragmentSize, codec.getHeaderLength()) : fragmentSize);
+		boolean last = length == remaining;
+		WireBuffer fragment = codec.encodeFragment(lane, frame.data, offset, length, first, last);
+		if(last) {
+			partial[lane] = null;
+			PacketCodec.framePool.release(frame);
+		} else {
+			partialOffset[lane] = offset + length;
+		}
+		return fragment;
+	}
+
+	private boolean hasWork(int lane) {
+		return partial[lane] != null || !lanes[lane].isEmpty();
+	}
+
+	private int nextLane() {
+		for(int pass = 0; pass < 2; pass++) {
+			for(int lane = 0; lane < lanes.length; lane++) {
+				if(credits[lane] > 0 && hasWork(lane)) {
+					credits[lane]--;
+					return lane;
+				}
+			}
+			System.arraycopy(weights, 0, credits, 0, weights.length);
+		}
+		return -1;
+	}
+
+	// Waits until a packet is offered to any lane, returns false once the deadline has passed
+
+	private boolean await(long deadline) {
+		long remaining = deadline - System.nanoTime();
+		if(remaining <= 0 || Thread.currentThread().isInterrupted()) {
+			return false;
+		}
+		for(SendQueue<EventLinkPacket> lane : lanes) {
+			lane.setWaiting(true);
+		}
+		try {
+			if(isEmpty()) {
+				LockSupport.parkNanos(this, remaining);
+			}
+		} finally {
+			for(SendQueue<EventLinkPacket> lane : lanes) {
+				lane.setWaiting(false);
+			}
+		}
+		return true;
+	}
+
+}
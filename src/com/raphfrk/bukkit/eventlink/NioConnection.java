@@ -0,0 +1,418 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+// Binary link served by a selector thread of the NioTransport instead of its own threads
+//
+// Senders put packets on the send queue and schedule a flush on the selector thread, which
+// encodes everything queued, wraps it and writes as much as the socket takes. Reads unwrap
+// into appIn and every complete frame is decoded in place and passed to the ConnectionManager.
+
+public class NioConnection extends Connection implements NioTransport.Handler {
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final NioTransport.Worker worker;
+
+	private SelectionKey key = null;
+
+	// All buffers are kept flipped, position to limit is the pending data
+	private ByteBuffer netIn;
+	private ByteBuffer appIn;
+	private ByteBuffer appOut;
+	private ByteBuffer netOut;
+
+	// Frames are decoded in place from appIn, only used on the selector thread
+	private final WireBuffer frameView = new WireBuffer(0);
+
+	private final LaneQueue sendQueue;
+	private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	private final Runnable flushTask = new NioTransport.HandlerTask(this) {
+		public void run() {
+			flush();
+		}
+	};
+
+	private final Runnable closeTask = new NioTransport.HandlerTask(this) {
+		public void run() {
+			close();
+		}
+	};
+
+	NioConnection(ConnectionManager connectionManager, EventLink p, WireOptions wireOptions, String serverName, SSLEngineStreams engineStreams, NioTransport transport) {
+		super(connectionManager, p, engineStreams.getSocket(), null, null, wireOptions, serverName);
+
+		this.channel = engineStreams.getChannel();
+		this.engine = engineStreams.getEngine();
+		this.worker = transport.nextWorker();
+		this.sendQueue = new LaneQueue(p, serverName);
+
+		// Deserializing a large event would hold up every link on the selector thread,
+		// so payloads are decoded by the inbound threads instead
+		if(codec != null) {
+			codec.setDecodeLocalPayloads(false);
+		}
+
+		int packetSize = engine.getSession().getPacketBufferSize();
+		int applicationSize = engine.getSession().getApplicationBufferSize();
+
+		netIn = copyFlipped(engineStreams.getNetIn(), packetSize);
+		appIn = copyFlipped(engineStreams.getAppIn(), applicationSize);
+		appOut = ByteBuffer.allocate(Math.max(p.writeBufferSize, applicationSize));
+		appOut.flip();
+		netOut = ByteBuffer.allocate(packetSize);
+		netOut.flip();
+
+		try {
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			p.log("Unable to switch connection to " + serverName + " to non-blocking mode");
+			closed.set(true);
+			SSLUtils.closeSocket(s);
+			return;
+		}
+
+		worker.register(channel, SelectionKey.OP_READ, this);
+	}
+
+	private static ByteBuffer copyFlipped(ByteBuffer buffer, int minimum) {
+		ByteBuffer copy = ByteBuffer.allocate(Math.max(minimum, buffer.remaining() + minimum));
+		copy.put(buffer.duplicate());
+		copy.flip();
+		return copy;
+	}
+
+	@Override
+	public SendResult send(EventLinkPacket eventLinkPacket) {
+		if(closed.get()) {
+			return SendResult.REJECTED;
+		}
+		SendResult result = sendQueue.offer(eventLinkPacket, this);
+		if(result.isQueued() && writeScheduled.compareAndSet(false, true)) {
+			worker.execute(flushTask);
+		}
+		return result;
+	}
+
+	@Override
+	boolean getAlive() {
+		return !closed.get();
+	}
+
+	@Override
+	String whichAlive() {
+		return closed.get() ? "" : "Selector";
+	}
+
+	@Override
+	void interruptConnection() {
+		if(worker.isAlive()) {
+			worker.execute(closeTask);
+		} else {
+			close();
+		}
+	}
+
+	@Override
+	public boolean joinConnection() throws InterruptedException {
+		long end = System.currentTimeMillis() + 200;
+		while(getAlive() && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		return getAlive();
+	}
+
+	public void registered(SelectionKey key) {
+		this.key = key;
+		if(closed.get()) {
+			key.cancel();
+			return;
+		}
+		// Handshake leftovers may already hold whole frames
+		try {
+			readFrames();
+		} catch (IOException e) {
+			p.log("IO Error with connection from: " + serverName);
+			close();
+			return;
+		}
+		flush();
+	}
+
+	public void ready(SelectionKey key) {
+		try {
+			if(key.isReadable()) {
+				read();
+			}
+			if(!closed.get() && key.isValid() && key.isWritable()) {
+				flush();
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	private void read() throws IOException {
+		netIn.compact();
+		int read;
+		try {
+			read = channel.read(netIn);
+		} finally {
+			netIn.flip();
+		}
+		if(read < 0) {
+			close();
+			return;
+		}
+		readFrames();
+	}
+
+	private void readFrames() throws IOException {
+		while(!closed.get()) {
+			parseFrames();
+			if(!netIn.hasRemaining()) {
+				return;
+			}
+			appIn.compact();
+			SSLEngineResult result;
+			try {
+				result = engine.unwrap(netIn, appIn);
+			} finally {
+				appIn.flip();
+			}
+			switch(result.getStatus()) {
+			case BUFFER_UNDERFLOW:
+				if(netIn.limit() == netIn.capacity()) {
+					netIn = SSLEngineStreams.grow(netIn, engine.getSession().getPacketBufferSize());
+				}
+				return;
+			case BUFFER_OVERFLOW:
+				appIn = SSLEngineStreams.grow(appIn, engine.getSession().getApplicationBufferSize());
+				break;
+			case CLOSED:
+				close();
+				return;
+			default:
+				handleHandshakeStatus(result.getHandshakeStatus());
+			}
+		}
+	}
+
+	private void handleHandshakeStatus(SSLEngineResult.HandshakeStatus status) {
+		if(status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+			Runnable task;
+			while((task = engine.getDelegatedTask()) != null) {
+				task.run();
+			}
+		} else if(status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+			// Post handshake message, flush wraps it even if there is no data
+			writeScheduled.set(true);
+			worker.execute(flushTask);
+		}
+	}
+
+	private void parseFrames() throws IOException {
+		while(true) {
+			int start = appIn.position();
+			int length = 0;
+			boolean complete = false;
+			for(int shift = 0; shift < 35 && appIn.hasRemaining(); shift += 7) {
+				int b = appIn.get() & 0xFF;
+				length |= (b & 0x7F) << shift;
+				if((b & 0x80) == 0) {
+					complete = true;
+					break;
+				}
+			}
+			if(!complete) {
+				if(appIn.position() - start >= 5) {
+					throw new StreamCorruptedException("Malformed frame length");
+				}
+				appIn.position(start);
+				return;
+			}
+			if(length < 0 || length > PacketCodec.maxFrameSize) {
+				throw new StreamCorruptedException("Frame too large: " + length);
+			}
+			if(appIn.remaining() < length) {
+				int needed = appIn.position() - start + length;
+				appIn.position(start);
+				if(appIn.capacity() < needed + engine.getSession().getApplicationBufferSize()) {
+					appIn = SSLEngineStreams.grow(appIn, needed);
+				}
+				return;
+			}
+			WireBuffer frame = frameView;
+			frame.wrap(appIn.array(), appIn.arrayOffset() + appIn.position(), length);
+			appIn.position(appIn.position() + length);
+			EventLinkPacket eventLinkPacket;
+			try {
+				eventLinkPacket = codec.decodeFrame(frame);
+			} catch (ClassNotFoundException e) {
+				p.log("Received unknown class from: " + serverName);
+				continue;
+			}
+			if(eventLinkPacket != null) {
+				connectionManager.receive(eventLinkPacket);
+			}
+		}
+	}
+
+	// Only called on the selector thread
+
+	private void flush() {
+		if(closed.get() || key == null) {
+			return;
+		}
+		try {
+			while(true) {
+				if(!writeNet()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				fillAppOut();
+				if(appOut.hasRemaining() || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					wrap();
+					continue;
+				}
+				key.interestOps(SelectionKey.OP_READ);
+				writeScheduled.set(false);
+				if(sendQueue.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			p.log("Object write error to " + serverName);
+			close();
+		}
+	}
+
+	// Returns true if everything pending was written
+
+	private boolean writeNet() throws IOException {
+		while(netOut.hasRemaining()) {
+			if(channel.write(netOut) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void fillAppOut() {
+		appOut.compact();
+		try {
+			WireBuffer frame;
+			while(appOut.position() < p.writeBufferSize && (frame = sendQueue.pollFrame(codec, 0)) != null) {
+				int needed = frame.limit + 5;
+				if(appOut.remaining() < needed) {
+					ByteBuffer larger = ByteBuffer.allocate(appOut.position() + needed);
+					appOut.flip();
+					larger.put(appOut);
+					appOut = larger;
+				}
+				int length = frame.limit;
+				while((length & ~0x7F) != 0) {
+					appOut.put((byte)((length & 0x7F) | 0x80));
+					length >>>= 7;
+				}
+				appOut.put((byte)length);
+				appOut.put(frame.data, 0, frame.limit);
+			}
+		} finally {
+			appOut.flip();
+		}
+	}
+
+	private void wrap() throws IOException {
+		netOut.compact();
+		SSLEngineResult result;
+		try {
+			result = engine.wrap(appOut, netOut);
+		} finally {
+			netOut.flip();
+		}
+		switch(result.getStatus()) {
+		case BUFFER_OVERFLOW:
+			netOut = SSLEngineStreams.grow(netOut, engine.getSession().getPacketBufferSize());
+			break;
+		case CLOSED:
+			throw new IOException("TLS connection closed");
+		default:
+			if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				handleHandshakeStatus(result.getHandshakeStatus());
+			}
+		}
+	}
+
+	public void close() {
+		if(!closed.compareAndSet(false, true)) {
+			return;
+		}
+		if(key != null) {
+			key.cancel();
+		}
+		try {
+			engine.closeOutbound();
+			netOut.clear();
+			engine.wrap(ByteBuffer.allocate(0), netOut);
+			netOut.flip();
+			channel.write(netOut);
+		} catch (IOException e) {
+		} catch (RuntimeException e) {
+			// Engine already in a bad state, the socket is closed anyway
+		}
+		SSLUtils.closeSocket(s);
+		sendQueue.wakeProducers();
+
+		// Route clean up can send packets, so keep it off the selector thread
+		Thread t = KillableThread.newThread(new Runnable() {
+			public void run() {
+				boolean clearRoutes;
+				synchronized(connectionManager.activeConnections) {
+					clearRoutes = connectionManager.activeConnections.remove(serverName, NioConnection.this);
+				}
+				if(clearRoutes) {
+					p.log("Closing connection to " + serverName);
+					p.routingTableManager.clearRoutesThrough(serverName);
+					p.log("Routes cleared");
+				} else {
+					p.log("Closing expired connection to " + serverName);
+				}
+			}
+		}, "Close connection: " + serverName);
+		t.start();
+	}
+
+}
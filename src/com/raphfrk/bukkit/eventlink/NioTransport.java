@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Selector threads shared by all links when transport=nio is set in eventlink.txt
+//
+// Channels are spread over the workers round robin, a worker only wakes when one of its
+// channels is ready or another thread hands it a task. The server's accept channel is
+// served by the first worker.
+
+public class NioTransport {
+
+	interface Handler {
+		void registered(SelectionKey key);
+		void ready(SelectionKey key);
+		void close();
+	}
+
+	// Task run on behalf of one handler, the handler is closed if the task throws
+
+	static abstract class HandlerTask implements Runnable {
+
+		final Handler handler;
+
+		HandlerTask(Handler handler) {
+			this.handler = handler;
+		}
+
+	}
+
+	interface AcceptHandler {
+		void accepted(SocketChannel channel);
+	}
+
+	private final EventLink p;
+
+	private final Worker[] workers;
+	private final AtomicInteger nextWorker = new AtomicInteger(0);
+
+	NioTransport(EventLink p, int threads) throws IOException {
+		this.p = p;
+		workers = new Worker[Math.max(1, threads)];
+		for(int cnt = 0; cnt < workers.length; cnt++) {
+			workers[cnt] = new Worker(Selector.open());
+			workers[cnt].setName("EventLink selector " + cnt);
+			workers[cnt].setDaemon(true);
+		}
+		for(Worker worker : workers) {
+			worker.start();
+		}
+	}
+
+	Worker nextWorker() {
+		return workers[(nextWorker.getAndIncrement() & 0x7FFFFFFF) % workers.length];
+	}
+
+	void listen(final ServerSocketChannel serverChannel, final AcceptHandler acceptHandler) throws IOException {
+		serverChannel.configureBlocking(false);
+		workers[0].register(serverChannel, SelectionKey.OP_ACCEPT, new Handler() {
+
+			public void registered(SelectionKey key) {
+			}
+
+			public void ready(SelectionKey key) {
+				while(true) {
+					SocketChannel channel;
+					try {
+						channel = serverChannel.accept();
+					} catch (IOException e) {
+						p.log("Socket exception");
+						return;
+					}
+					if(channel == null) {
+						return;
+					}
+					acceptHandler.accepted(channel);
+				}
+			}
+
+			public void close() {
+				try {
+					serverChannel.close();
+				} catch (IOException e) {
+				}
+			}
+
+		});
+	}
+
+	void stopListening(final ServerSocketChannel serverChannel) {
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					serverChannel.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+		if(workers[0].isAlive()) {
+			workers[0].execute(task);
+		} else {
+			task.run();
+		}
+	}
+
+	void stop() {
+		for(Worker worker : workers) {
+			worker.interrupt();
+		}
+		for(Worker worker : workers) {
+			try {
+				worker.join(1000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	class Worker extends KillableThread {
+
+		private final Selector selector;
+
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		// Selector threads stay on platform threads, a blocked select would pin a carrier
+
+		Worker(Selector selector) {
+			super(false);
+			this.selector = selector;
+		}
+
+		// Runs the task on the selector thread
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		// The handler is told its key once the channel is registered, or closed if that fails
+
+		void register(final SelectableChannel channel, final int ops, final Handler handler) {
+			execute(new HandlerTask(handler) {
+				public void run() {
+					try {
+						handler.registered(channel.register(selector, ops, handler));
+					} catch (ClosedChannelException e) {
+						handler.close();
+					}
+				}
+			});
+		}
+
+		public void run() {
+
+			SendQueue.setNonBlocking();
+
+			while(!killed()) {
+
+				try {
+					selector.select();
+				} catch (IOException e) {
+					p.log("Selector error: " + e.getMessage());
+					kill();
+					continue;
+				}
+
+				// A failure only closes the link it came from, the other links on this worker carry on
+				Runnable task;
+				while((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						p.log("Selector task failed: " + e);
+						if(task instanceof HandlerTask) {
+							((HandlerTask)task).handler.close();
+						}
+					}
+				}
+
+				Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+				while(itr.hasNext()) {
+					SelectionKey key = itr.next();
+					itr.remove();
+					Handler handler = (Handler)key.attachment();
+					try {
+						if(key.isValid()) {
+							handler.ready(key);
+						}
+					} catch (CancelledKeyException cke) {
+						handler.close();
+					} catch (RuntimeException e) {
+						p.log("Selector error: " + e);
+						handler.close();
+					}
+				}
+			}
+
+			for(SelectionKey key : selector.keys()) {
+				((Handler)key.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+
+		}
+
+	}
+
+}
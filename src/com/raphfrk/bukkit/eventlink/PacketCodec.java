@@ -0,0 +1,1084 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Binary frame format used once both ends agree on it during the handshake
+//
+// frame  = varint length, frame type, frame body
+// packet = flags, source, destination count, destinations, ttl, id, [timestamp], payload tag,
+//          symbol count, symbols, payload
+// fragment = lane, first/last flags, part of a packet frame (from wire version 3)
+// compressed = uncompressed length, deflated packet or fragment frame (if both ends offer it)
+//
+// Server names and payload symbols go through the link's StringDictionary, so after the
+// first use they cost a byte or two. The payload only refers to symbols by their index in
+// the frame, which keeps the payload bytes independent of the link they are sent over.
+//
+// Payloads are encoded by the PayloadCodec registered for the tag, anything without
+// a dedicated codec falls back to Java serialization of just the payload. Class descriptors
+// in serialized payloads are replaced by a symbol holding the class name and version.
+//
+// Packets that aren't addressed to this server keep their payload as a RawPayload, which
+// is written back out unchanged when the packet is forwarded.
+
+public class PacketCodec {
+
+	static final int frameTypePacket = 1;
+	static final int frameTypeFragment = 2;
+	static final int frameTypeCompressed = 3;
+
+	static final int maxFrameSize = 16 * 1024 * 1024;
+
+	private static final int flagRequestConfirm = 1;
+	private static final int flagConfirmationPacket = 2;
+	private static final int flagTimeStamp = 4;
+	private static final int flagUrgent = 8;
+	// Two bits holding the sender's SendPriority + 1, 0 if none was picked
+	private static final int priorityShift = 4;
+	private static final int priorityMask = 3;
+
+	private static final int fragmentFirst = 1;
+	private static final int fragmentLast = 2;
+
+	private static final SendPriority[] priorities = SendPriority.values();
+
+	// Compression is paused for a while if a sample of frames saves too little or
+	// deflates too slowly, the pause doubles each time it happens again
+	private static final int compressionSampleFrames = 32;
+	private static final double compressionMinSaving = 0.1;
+	private static final long compressionMinBytesPerMilli = 10 * 1024;
+	private static final int compressionMinPause = 64;
+	private static final int compressionMaxPause = 4096;
+
+	static final int tagNull = 0;
+	static final int tagSerialized = 1;
+	static final int tagString = 2;
+	static final int tagPing = 3;
+	static final int tagRoutingTable = 4;
+	static final int tagMessageEvent = 5;
+	static final int tagStream = 6;
+	static final int tagRoutingUpdate = 7;
+	static final int tagRoutingDigest = 8;
+
+	// Number of socket timeouts tolerated once part of a frame has been read
+	private static final int maxFrameTimeouts = 30;
+
+	private static final int bufferShrinkSize = 64 * 1024;
+
+	// Buffers larger than this are left to the GC rather than kept in the pool
+	private static final int pooledBufferLimit = 256 * 1024;
+
+	// Shared by all links, for buffers that outlive a single encode or decode call
+	static final BufferPool framePool = new BufferPool(16, 512, pooledBufferLimit);
+
+	private static final String[] noSymbols = new String[0];
+
+	private static final PayloadCodec[] codecsByTag = new PayloadCodec[256];
+	private static final CopyOnWriteArrayList<PayloadCodec> codecs = new CopyOnWriteArrayList<PayloadCodec>();
+	private static final ConcurrentHashMap<Class<?>,PayloadCodec> codecsByClass = new ConcurrentHashMap<Class<?>,PayloadCodec>();
+	private static final PayloadCodec serializedCodec = new SerializedPayloadCodec();
+
+	static {
+		codecsByTag[tagSerialized] = serializedCodec;
+		registerPayloadCodec(new StringPayloadCodec());
+		registerPayloadCodec(new PingPayloadCodec());
+		registerPayloadCodec(new RoutingTablePayloadCodec());
+		registerPayloadCodec(new MessageEventPayloadCodec());
+		registerPayloadCodec(new StreamPayloadCodec());
+		registerPayloadCodec(new RoutingUpdatePayloadCodec());
+		registerPayloadCodec(new RoutingDigestPayloadCodec());
+	}
+
+	private WireBuffer outBuffer = new WireBuffer(512);
+	private WireBuffer bodyBuffer = new WireBuffer(512);
+	private WireBuffer inBuffer = new WireBuffer(512);
+
+	private WireBuffer fragmentBuffer = new WireBuffer(512);
+	private WireBuffer compressBuffer = null;
+	private WireBuffer inflateBuffer = null;
+
+	private Deflater deflater = null;
+	private Inflater inflater = null;
+
+	private final boolean compression;
+	private final int compressionThreshold;
+
+	// Only touched by the writer thread
+	private int compressionPause = 0;
+	private int compressionNextPause = compressionMinPause;
+	private int sampleFrames = 0;
+	private long sampleIn = 0;
+	private long sampleOut = 0;
+	private long sampleNanos = 0;
+
+	// Written by the writer thread, read by the stats command
+	private volatile long framesCompressed = 0;
+	private volatile long bytesBeforeCompression = 0;
+	private volatile long bytesAfterCompression = 0;
+	private volatile int compressionPauses = 0;
+
+	private final StringDictionary outDictionary;
+	private final StringDictionary inDictionary;
+
+	// Only set if the peer understands fragment frames
+	private final boolean fragments;
+	// Length of the header of the last encoded frame, the first fragment has to include it
+	private int headerLength = 0;
+
+	// Header of an unfragmented frame, reused as it is finished with before the next frame
+	private final FrameHeader packetHeader = new FrameHeader();
+
+	// Packets being reassembled, by lane
+	private final FrameHeader[] fragmentHeaders = new FrameHeader[priorities.length];
+	private final WireBuffer[] fragmentBodies = new WireBuffer[priorities.length];
+
+	// Payloads are only decoded for packets addressed to this server
+	private final String localServer;
+	// If cleared local payloads are left raw too, and decoded by whoever processes the packet
+	private boolean decodeLocalPayloads = true;
+
+	PacketCodec(WireOptions wireOptions) {
+		this(wireOptions, null);
+	}
+
+	PacketCodec(WireOptions wireOptions, String localServer) {
+		this(wireOptions, localServer, 512);
+	}
+
+	PacketCodec(WireOptions wireOptions, String localServer, int compressionThreshold) {
+		this.localServer = localServer;
+		this.compression = wireOptions.compression;
+		this.compressionThreshold = compressionThreshold;
+		this.fragments = wireOptions.supportsFragments();
+		outDictionary = new StringDictionary(wireOptions.dictionarySize, true);
+		inDictionary = new StringDictionary(wireOptions.dictionarySize, false);
+	}
+
+	void setDecodeLocalPayloads(boolean decodeLocalPayloads) {
+		this.decodeLocalPayloads = decodeLocalPayloads;
+	}
+
+	public static boolean registerPayloadCodec(PayloadCodec codec) {
+		int tag = codec.getTag();
+		synchronized(codecsByTag) {
+			if(tag <= tagNull || tag >= codecsByTag.length || codecsByTag[tag] != null) {
+				return false;
+			}
+			codecsByTag[tag] = codec;
+			codecs.add(codec);
+			codecsByClass.clear();
+		}
+		return true;
+	}
+
+	static PayloadCodec getPayloadCodec(Object payload) {
+		Class<?> payloadClass = payload.getClass();
+		PayloadCodec codec = codecsByClass.get(payloadClass);
+		if(codec == null) {
+			codec = serializedCodec;
+			for(PayloadCodec current : codecs) {
+				if(current.canEncode(payload)) {
+					codec = current;
+					break;
+				}
+			}
+			codecsByClass.put(payloadClass, codec);
+		}
+		return codec;
+	}
+
+	// Encodes the packet into the internal buffer, nothing is written to the stream
+	// so a payload that can't be encoded doesn't corrupt the link
+
+	WireBuffer encode(EventLinkPacket packet) throws IOException {
+		outBuffer.clear();
+		encodePacket(packet, outBuffer);
+		return outBuffer;
+	}
+
+	boolean supportsFragments() {
+		return fragments;
+	}
+
+	int getHeaderLength() {
+		return headerLength;
+	}
+
+	// Wraps part of an encoded frame, the frame must have been copied as the
+	// encode buffer is reused
+
+	WireBuffer encodeFragment(int lane, byte[] frame, int offset, int length, boolean first, boolean last) {
+		WireBuffer buffer = fragmentBuffer;
+		buffer.clear();
+		buffer.writeByte(frameTypeFragment);
+		buffer.writeVarInt(lane);
+		buffer.writeByte((first ? fragmentFirst : 0) | (last ? fragmentLast : 0));
+		buffer.writeBytes(frame, offset, length);
+		return buffer;
+	}
+
+	// Frames under the threshold are returned as they are without any extra work
+
+	WireBuffer compress(WireBuffer frame) {
+		if(!compression || frame.limit < compressionThreshold) {
+			return frame;
+		}
+		if(compressionPause > 0) {
+			compressionPause--;
+			return frame;
+		}
+
+		long start = System.nanoTime();
+		if(deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			compressBuffer = new WireBuffer(512);
+		}
+		deflater.reset();
+		deflater.setInput(frame.data, 0, frame.limit);
+		deflater.finish();
+
+		WireBuffer buffer = compressBuffer;
+		buffer.clear();
+		buffer.writeByte(frameTypeCompressed);
+		buffer.writeVarInt(frame.limit);
+		// Gives up once the output is as large as the input
+		while(!deflater.finished() && buffer.limit < frame.limit) {
+			buffer.ensureCapacity(Math.max(512, frame.limit >> 2));
+			buffer.limit += deflater.deflate(buffer.data, buffer.limit, buffer.data.length - buffer.limit);
+		}
+		boolean smaller = deflater.finished() && buffer.limit < frame.limit;
+
+		sampleCompression(frame.limit, smaller ? buffer.limit : frame.limit, System.nanoTime() - start);
+
+		if(!smaller) {
+			return frame;
+		}
+		framesCompressed++;
+		bytesBeforeCompression += frame.limit;
+		bytesAfterCompression += buffer.limit;
+		return buffer;
+	}
+
+	private void sampleCompression(int in, int out, long nanos) {
+		sampleIn += in;
+		sampleOut += out;
+		sampleNanos += nanos;
+		if(++sampleFrames < compressionSampleFrames) {
+			return;
+		}
+		double saving = 1.0 - (double)sampleOut / sampleIn;
+		long bytesPerMilli = sampleIn * 1000000L / Math.max(1, sampleNanos);
+		if(saving < compressionMinSaving || bytesPerMilli < compressionMinBytesPerMilli) {
+			compressionPause = compressionNextPause;
+			compressionNextPause = Math.min(compressionMaxPause, compressionNextPause << 1);
+			compressionPauses++;
+		} else {
+			compressionNextPause = compressionMinPause;
+		}
+		sampleFrames = 0;
+		sampleIn = 0;
+		sampleOut = 0;
+		sampleNanos = 0;
+	}
+
+	String getCompressionStats() {
+		if(!compression) {
+			return "compression off";
+		}
+		long before = bytesBeforeCompression;
+		long after = bytesAfterCompression;
+		long saved = before - after;
+		return "compressed " + framesCompressed + " frames, " + before + " -> " + after + " bytes, saved " + saved +
+				(before > 0 ? " (" + (saved * 100 / before) + "%)" : "") +
+				", paused " + compressionPauses + " times" + (compressionPause > 0 ? " (paused now)" : "");
+	}
+
+	private WireBuffer inflate(WireBuffer buffer) throws IOException {
+		int length = buffer.readVarInt();
+		if(length <= 0 || length > maxFrameSize) {
+			throw new StreamCorruptedException("Bad compressed frame length: " + length);
+		}
+		if(inflater == null) {
+			inflater = new Inflater();
+			inflateBuffer = new WireBuffer(512);
+		}
+		if(inflateBuffer.data.length > bufferShrinkSize && length <= bufferShrinkSize) {
+			inflateBuffer = new WireBuffer(512);
+		}
+		WireBuffer inflated = inflateBuffer;
+		inflated.clear();
+		inflated.ensureCapacity(length);
+		inflater.reset();
+		inflater.setInput(buffer.data, buffer.position, buffer.remaining());
+		try {
+			while(inflated.limit < length && !inflater.finished()) {
+				int count = inflater.inflate(inflated.data, inflated.limit, length - inflated.limit);
+				if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated.limit += count;
+			}
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Bad compressed frame: " + e.getMessage());
+		}
+		if(inflated.limit != length || !inflater.finished()) {
+			throw new StreamCorruptedException("Compressed frame length mismatch");
+		}
+		buffer.position = buffer.limit;
+		if(inflated.data[0] == frameTypeCompressed) {
+			throw new StreamCorruptedException("Nested compressed frame");
+		}
+		return inflated;
+	}
+
+	void writeFrame(WireBuffer frame, OutputStream out) throws IOException {
+		WireBuffer.writeVarInt(out, frame.limit);
+		out.write(frame.data, 0, frame.limit);
+		if(compressBuffer != null && compressBuffer.data.length > bufferShrinkSize) {
+			compressBuffer = new WireBuffer(512);
+		}
+		if(frame.data.length > bufferShrinkSize) {
+			outBuffer = new WireBuffer(512);
+		}
+		if(bodyBuffer.data.length > bufferShrinkSize) {
+			bodyBuffer = new WireBuffer(512);
+		}
+	}
+
+	void encodePacket(EventLinkPacket packet, WireBuffer buffer) throws IOException {
+
+		// The payload is encoded first, so if it fails the dictionary hasn't changed
+		WireBuffer body = bodyBuffer;
+		body.clear();
+
+		Object payload = packet.payload;
+		RawPayload raw = packet.getSharedPayload();
+		if(raw == null && payload instanceof RawPayload) {
+			raw = (RawPayload)payload;
+		}
+		int tag = tagNull;
+		if(raw != null) {
+			tag = raw.tag;
+		} else if(payload != null) {
+			PayloadCodec codec = getPayloadCodec(payload);
+			tag = codec.getTag();
+			codec.encode(payload, body);
+		}
+
+		buffer.writeByte(frameTypePacket);
+
+		long timeStamp = packet.getTimeStamp();
+
+		int flags = 0;
+		if(packet.isConfirmRequired()) {
+			flags |= flagRequestConfirm;
+		}
+		if(packet.isConfirmationPacket()) {
+			flags |= flagConfirmationPacket;
+		}
+		if(timeStamp != -1) {
+			flags |= flagTimeStamp;
+		}
+		if(packet.isUrgent()) {
+			flags |= flagUrgent;
+		}
+		if(packet.hasPriority()) {
+			flags |= (packet.getPriority().ordinal() + 1) << priorityShift;
+		}
+		buffer.writeByte(flags);
+
+		outDictionary.write(buffer, packet.sourceServer);
+
+		String[] destinations = packet.destinationServers;
+		buffer.writeVarInt(destinations.length);
+		for(String destination : destinations) {
+			outDictionary.write(buffer, destination);
+		}
+
+		buffer.writeSignedVarInt(packet.timeToLive);
+		buffer.writeLong(packet.getIdNum());
+		if(timeStamp != -1) {
+			buffer.writeVarLong(timeStamp);
+		}
+
+		buffer.writeByte(tag);
+
+		if(raw != null) {
+			buffer.writeVarInt(raw.symbols.length);
+			for(String symbol : raw.symbols) {
+				outDictionary.write(buffer, symbol);
+			}
+			headerLength = buffer.limit;
+			buffer.writeBytes(raw.data, 0, raw.length);
+			return;
+		}
+
+		int symbolCount = body.getSymbolCount();
+		buffer.writeVarInt(symbolCount);
+		for(int cnt = 0; cnt < symbolCount; cnt++) {
+			outDictionary.write(buffer, body.getSymbol(cnt));
+		}
+
+		headerLength = buffer.limit;
+		buffer.writeBytes(body.data, 0, body.limit);
+
+	}
+
+	// The result is immutable and can be shared between links
+	// Only the payload is encoded, the header depends on each link's dictionary
+	// The body is left in a pooled buffer, the caller holds one reference to it
+
+	static RawPayload encodeShared(Object payload) throws IOException {
+		WireBuffer body = framePool.acquire();
+		PayloadCodec codec = getPayloadCodec(payload);
+		boolean encoded = false;
+		try {
+			codec.encode(payload, body);
+			encoded = true;
+		} finally {
+			if(!encoded) {
+				framePool.release(body);
+			}
+		}
+		String[] symbols = body.getSymbolCount() == 0 ? noSymbols : new String[body.getSymbolCount()];
+		for(int cnt = 0; cnt < symbols.length; cnt++) {
+			symbols[cnt] = body.getSymbol(cnt);
+		}
+		return new RawPayload(codec.getTag(), symbols, body);
+	}
+
+	// Returns null if the stream ended cleanly between frames
+	// A socket timeout before the first byte of a frame is passed to the caller
+	// Fragments are collected until a whole packet has been read
+
+	EventLinkPacket readPacket(InputStream in) throws IOException, ClassNotFoundException {
+
+		while(true) {
+
+			int length = readFrameLength(in);
+
+			if(length < 0) {
+				return null;
+			}
+
+			WireBuffer buffer = inBuffer;
+			buffer.clear();
+			buffer.ensureCapacity(length);
+			readFully(in, buffer.data, 0, length);
+			buffer.limit = length;
+
+			try {
+				EventLinkPacket packet = decodeFrame(buffer);
+				if(packet != null) {
+					return packet;
+				}
+			} finally {
+				if(buffer.data.length > bufferShrinkSize) {
+					inBuffer = new WireBuffer(512);
+				}
+			}
+
+		}
+
+	}
+
+	// Returns null if the frame was a fragment and the packet isn't complete yet
+
+	EventLinkPacket decodeFrame(WireBuffer buffer) throws IOException, ClassNotFoundException {
+
+		int frameType = buffer.readByte();
+		if(frameType == frameTypeCompressed) {
+			buffer = inflate(buffer);
+			frameType = buffer.readByte();
+		}
+
+		if(frameType == frameTypeFragment) {
+			return decodeFragment(buffer);
+		} else if(frameType != frameTypePacket) {
+			throw new StreamCorruptedException("Unknown frame type: " + frameType);
+		}
+
+		return decodeBody(decodeHeader(buffer, packetHeader), buffer);
+
+	}
+
+	// The first fragment always holds the whole header, so the dictionary is updated in the
+	// same order the frames were encoded, even if other frames are sent before the last fragment
+
+	private EventLinkPacket decodeFragment(WireBuffer buffer) throws IOException, ClassNotFoundException {
+
+		int lane = buffer.readVarInt();
+		if(lane < 0 || lane >= fragmentHeaders.length) {
+			throw new StreamCorruptedException("Bad fragment lane: " + lane);
+		}
+		int fragmentFlags = buffer.readByte();
+
+		if((fragmentFlags & fragmentFirst) != 0) {
+			if(fragmentHeaders[lane] != null) {
+				throw new StreamCorruptedException("Fragment started before the previous one ended");
+			}
+			int frameType = buffer.readByte();
+			if(frameType != frameTypePacket) {
+				throw new StreamCorruptedException("Unknown fragmented frame type: " + frameType);
+			}
+			fragmentHeaders[lane] = decodeHeader(buffer, new FrameHeader());
+			fragmentBodies[lane] = framePool.acquire();
+		} else if(fragmentHeaders[lane] == null) {
+			throw new StreamCorruptedException("Fragment continued without a start");
+		}
+
+		WireBuffer body = fragmentBodies[lane];
+		if(body.limit + buffer.remaining() > maxFrameSize) {
+			throw new StreamCorruptedException("Fragmented frame too large");
+		}
+		body.writeBytes(buffer.data, buffer.position, buffer.remaining());
+		buffer.position = buffer.limit;
+
+		if((fragmentFlags & fragmentLast) == 0) {
+			return null;
+		}
+
+		FrameHeader header = fragmentHeaders[lane];
+		fragmentHeaders[lane] = null;
+		fragmentBodies[lane] = null;
+		try {
+			return decodeBody(header, body);
+		} finally {
+			// Raw payloads and decoded objects never keep a reference to the frame bytes
+			framePool.release(body);
+		}
+
+	}
+
+	private FrameHeader decodeHeader(WireBuffer buffer, FrameHeader header) throws IOException {
+
+		header.flags = buffer.readByte();
+
+		header.sourceServer = inDictionary.read(buffer);
+
+		int count = buffer.readVarInt();
+		if(count < 0 || count > buffer.remaining()) {
+			throw new StreamCorruptedException("Bad destination count: " + count);
+		}
+		header.destinations = new String[count];
+		for(int cnt = 0; cnt < count; cnt++) {
+			header.destinations[cnt] = inDictionary.read(buffer);
+		}
+
+		header.timeToLive = buffer.readSignedVarInt();
+		header.idNum = buffer.readLong();
+		header.timeStamp = ((header.flags & flagTimeStamp) != 0) ? buffer.readVarLong() : -1;
+
+		header.tag = buffer.readByte();
+
+		int symbolCount = buffer.readVarInt();
+		if(symbolCount < 0 || symbolCount > buffer.remaining()) {
+			throw new StreamCorruptedException("Bad symbol count: " + symbolCount);
+		}
+		header.symbols = symbolCount == 0 ? noSymbols : new String[symbolCount];
+		for(int cnt = 0; cnt < symbolCount; cnt++) {
+			header.symbols[cnt] = inDictionary.read(buffer);
+		}
+
+		return header;
+
+	}
+
+	// The dictionary is up to date by now, so payload errors only lose this packet
+
+	private EventLinkPacket decodeBody(FrameHeader header, WireBuffer buffer) throws IOException, ClassNotFoundException {
+
+		Object payload = null;
+		if(header.tag != tagNull) {
+			if(decodeLocalPayloads && isLocal(header.destinations)) {
+				for(String symbol : header.symbols) {
+					buffer.addSymbol(symbol);
+				}
+				payload = decodePayload(header.tag, buffer);
+			} else {
+				// The packet holds the reference, released once it has been processed
+				WireBuffer data = framePool.acquire();
+				data.writeBytes(buffer.data, buffer.position, buffer.remaining());
+				buffer.position = buffer.limit;
+				payload = new RawPayload(header.tag, header.symbols, data);
+			}
+		}
+
+		int flags = header.flags;
+
+		EventLinkPacket packet = new EventLinkPacket(
+				header.sourceServer,
+				header.destinations,
+				payload,
+				header.timeToLive,
+				(flags & flagRequestConfirm) != 0,
+				(flags & flagConfirmationPacket) != 0,
+				header.idNum,
+				header.timeStamp
+		);
+		packet.setUrgent((flags & flagUrgent) != 0);
+		int priority = (flags >> priorityShift) & priorityMask;
+		if(priority > 0 && priority <= priorities.length) {
+			packet.setPriority(priorities[priority - 1]);
+		}
+
+		return packet;
+
+	}
+
+	private boolean isLocal(String[] destinations) {
+		if(localServer == null) {
+			return true;
+		}
+		for(String destination : destinations) {
+			if(localServer.equals(destination)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static class FrameHeader {
+		int flags;
+		String sourceServer;
+		String[] destinations;
+		int timeToLive;
+		long idNum;
+		long timeStamp;
+		int tag;
+		String[] symbols;
+	}
+
+	static Object decodePayload(int tag, WireBuffer buffer) throws IOException, ClassNotFoundException {
+		PayloadCodec codec = (tag > tagNull && tag < codecsByTag.length) ? codecsByTag[tag] : null;
+		if(codec == null) {
+			throw new ClassNotFoundException("No payload codec registered for tag " + tag);
+		}
+		try {
+			return codec.decode(buffer);
+		} catch (InvalidClassException ice) {
+			throw new ClassNotFoundException("Incompatible payload class: " + ice.getMessage());
+		}
+	}
+
+	private static int readFrameLength(InputStream in) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			int b = (shift == 0) ? in.read() : readByteRetry(in);
+			if(b < 0) {
+				if(shift == 0) {
+					return -1;
+				}
+				throw new EOFException("Stream ended inside frame length");
+			}
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				if(value < 0 || value > maxFrameSize) {
+					throw new StreamCorruptedException("Bad frame length: " + value);
+				}
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Malformed frame length");
+	}
+
+	private static int readByteRetry(InputStream in) throws IOException {
+		int timeouts = 0;
+		while(true) {
+			try {
+				return in.read();
+			} catch (SocketTimeoutException ste) {
+				checkTimeouts(++timeouts, ste);
+			}
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] b, int offset, int length) throws IOException {
+		int timeouts = 0;
+		while(length > 0) {
+			int read;
+			try {
+				read = in.read(b, offset, length);
+			} catch (SocketTimeoutException ste) {
+				checkTimeouts(++timeouts, ste);
+				continue;
+			}
+			if(read < 0) {
+				throw new EOFException("Stream ended inside frame");
+			}
+			offset += read;
+			length -= read;
+		}
+	}
+
+	private static void checkTimeouts(int timeouts, SocketTimeoutException ste) throws IOException {
+		if(Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Interrupted inside frame");
+		}
+		if(timeouts > maxFrameTimeouts) {
+			throw ste;
+		}
+	}
+
+	private static class SerializedPayloadCodec implements PayloadCodec {
+
+		public int getTag() {
+			return tagSerialized;
+		}
+
+		public boolean canEncode(Object payload) {
+			return payload instanceof Serializable;
+		}
+
+		// Setting up an ObjectOutputStream allocates its handle table and block buffers,
+		// so each thread keeps one and clears it between payloads
+		private final ThreadLocal<CompactObjectOutputStream> outputStreams = new ThreadLocal<CompactObjectOutputStream>();
+
+		public void encode(Object payload, WireBuffer buffer) throws IOException {
+			CompactObjectOutputStream out = outputStreams.get();
+			// Not handed back if the encode fails, as the stream state is then unknown
+			outputStreams.set(null);
+			if(out == null) {
+				out = new CompactObjectOutputStream();
+			}
+			out.setBuffer(buffer);
+			out.writeObject(payload);
+			out.flush();
+			// The reset marker goes nowhere, the peer starts a fresh stream for each payload
+			out.setBuffer(null);
+			out.reset();
+			out.flush();
+			outputStreams.set(out);
+		}
+
+		public Object decode(WireBuffer buffer) throws IOException, ClassNotFoundException {
+			ObjectInputStream in = new CompactObjectInputStream(buffer);
+			return in.readObject();
+		}
+
+	}
+
+	// Class descriptors are written as a symbol of "name#serialVersionUID#fieldHash"
+	// The receiving side uses its local descriptor after checking that the version and fields match
+
+	static String getClassKey(ObjectStreamClass desc) {
+		return desc.getName() + "#" + desc.getSerialVersionUID() + "#" + Integer.toHexString(getFieldHash(desc));
+	}
+
+	private static int getFieldHash(ObjectStreamClass desc) {
+		int hash = 0;
+		for(ObjectStreamField field : desc.getFields()) {
+			hash = hash * 31 + field.getName().hashCode();
+			hash = hash * 31 + field.getTypeCode();
+			String typeString = field.getTypeString();
+			if(typeString != null) {
+				hash = hash * 31 + typeString.hashCode();
+			}
+		}
+		return hash;
+	}
+
+	private static class CompactObjectOutputStream extends ObjectOutputStream {
+
+		private final BufferSink sink;
+
+		CompactObjectOutputStream() throws IOException {
+			this(new BufferSink());
+		}
+
+		private CompactObjectOutputStream(BufferSink sink) throws IOException {
+			super(sink);
+			this.sink = sink;
+		}
+
+		void setBuffer(WireBuffer buffer) {
+			sink.buffer = buffer;
+		}
+
+		@Override
+		protected void writeStreamHeader() {
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			WireBuffer.writeVarInt(this, sink.buffer.getSymbolIndex(getClassKey(desc)));
+		}
+
+	}
+
+	// Writes are dropped while no buffer is set
+
+	private static class BufferSink extends OutputStream {
+
+		WireBuffer buffer = null;
+
+		@Override
+		public void write(int b) {
+			if(buffer != null) {
+				buffer.writeByte(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) {
+			if(buffer != null) {
+				buffer.writeBytes(b, offset, length);
+			}
+		}
+
+	}
+
+	private static class CompactObjectInputStream extends ObjectInputStream {
+
+		private final WireBuffer buffer;
+
+		CompactObjectInputStream(WireBuffer buffer) throws IOException {
+			super(buffer.asInputStream());
+			this.buffer = buffer;
+		}
+
+		@Override
+		protected void readStreamHeader() {
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			String key = buffer.getSymbolChecked(readVarInt());
+			int split = key.indexOf('#');
+			if(split < 0) {
+				throw new StreamCorruptedException("Bad class symbol: " + key);
+			}
+			String name = key.substring(0, split);
+			Class<?> c = Class.forName(name, false, PacketCodec.class.getClassLoader());
+			ObjectStreamClass local = ObjectStreamClass.lookup(c);
+			if(local == null) {
+				throw new InvalidClassException(name, "class is not serializable");
+			}
+			if(!getClassKey(local).equals(key)) {
+				throw new InvalidClassException(name, "local class does not match the sender's version");
+			}
+			return local;
+		}
+
+		private int readVarInt() throws IOException {
+			int value = 0;
+			for(int shift = 0; shift < 35; shift += 7) {
+				int b = readUnsignedByte();
+				value |= (b & 0x7F) << shift;
+				if((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new StreamCorruptedException("Malformed class symbol index");
+		}
+
+	}
+
+	private static class StringPayloadCodec implements PayloadCodec {
+
+		public int getTag() {
+			return tagString;
+		}
+
+		public boolean canEncode(Object payload) {
+			return payload instanceof String;
+		}
+
+		public void encode(Object payload, WireBuffer buffer) throws IOException {
+			buffer.writeString((String)payload);
+		}
+
+		public Object decode(WireBuffer buffer) throws IOException {
+			return buffer.readString();
+		}
+
+	}
+
+	private static class PingPayloadCodec implements PayloadCodec {
+
+		public int getTag() {
+			return tagPing;
+		}
+
+		public boolean canEncode(Object payload) {
+			return payload instanceof Ping;
+		}
+
+		public void encode(Object payload, WireBuffer buffer) throws IOException {
+			buffer.writeString(((Ping)payload).sourcePlayer);
+		}
+
+		public Object decode(WireBuffer buffer) throws IOException {
+			return new Ping(buffer.readString());
+		}
+
+	}
+
+	private static class RoutingTablePayloadCodec implements PayloadCodec {
+
+		public int getTag() {
+			return tagRoutingTable;
+		}
+
+		public boolean canEncode(Object payload) {
+			return payload instanceof RoutingTable;
+		}
+
+		public void encode(Object payload, WireBuffer buffer) throws IOException {
+			((RoutingTable)payload).encode(buffer);
+		}
+
+		public Object decode(WireBuffer buffer) throws IOException {
+			return RoutingTable.decode(buffer);
+		}
+
+	}
+
+	private static class RoutingUpdatePayloadCodec implements PayloadCodec {
+
+		public int getTag() {
+			return tagRoutingUpdate;
+		}
+
+		public boolean canEncode(Object payload) {
+			return payload instanceof RoutingUpdate;
+		}
+
+		public void encode(Object payload, WireBuffer buffer) throws IOException {
+			((RoutingUpdate)payload).encode(buffer);
+		}
+
+		public Object decode(WireBuffer buffer) throws IOException {
+			return RoutingUpdate.decode(buffer);
+		}
+
+	}
+
+	private static class RoutingDigestPayloadCodec implements PayloadCodec {
+
+		public int getTag() {
+			return tagRoutingDigest;
+		}
+
+		public boolean canEncode(Object payload) {
+			return payload instanceof RoutingDigest;
+		}
+
+		public void encode(Object payload, WireBuffer buffer) throws IOException {
+			((RoutingDigest)payload).encode(buffer);
+		}
+
+		public Object decode(WireBuffer buffer) throws IOException {
+			return RoutingDigest.decode(buffer);
+		}
+
+	}
+
+	private static class MessageEventPayloadCodec implements PayloadCodec {
+
+		public int getTag() {
+			return tagMessageEvent;
+		}
+
+		public boolean canEncode(Object payload) {
+			return payload.getClass() == EventLinkMessageEvent.class;
+		}
+
+		public void encode(Object payload, WireBuffer buffer) throws IOException {
+			EventLinkMessageEvent event = (EventLinkMessageEvent)payload;
+			buffer.writeString(event.getFrom());
+			buffer.writeString(event.getTarget());
+			buffer.writeString(event.getMessage());
+		}
+
+		public Object decode(WireBuffer buffer) throws IOException {
+			String from = buffer.readString();
+			String target = buffer.readString();
+			String message = buffer.readString();
+			return new EventLinkMessageEvent(from, target, message);
+		}
+
+	}
+
+	private static class StreamPayloadCodec implements PayloadCodec {
+
+		public int getTag() {
+			return tagStream;
+		}
+
+		public boolean canEncode(Object payload) {
+			return payload instanceof StreamPacket;
+		}
+
+		public void encode(Object payload, WireBuffer buffer) throws IOException {
+			StreamPacket packet = (StreamPacket)payload;
+			buffer.writeLong(packet.streamId);
+			buffer.writeByte(packet.type);
+			buffer.writeVarInt(packet.sequence);
+			buffer.writeString(packet.channel);
+			if(packet.data == null) {
+				buffer.writeVarInt(0);
+			} else {
+				buffer.writeVarInt(packet.data.length + 1);
+				buffer.writeBytes(packet.data, 0, packet.data.length);
+			}
+		}
+
+		public Object decode(WireBuffer buffer) throws IOException {
+			long streamId = buffer.readLong();
+			int type = buffer.readByte();
+			int sequence = buffer.readVarInt();
+			String channel = buffer.readString();
+			int length = buffer.readVarInt() - 1;
+			byte[] data = null;
+			if(length >= 0) {
+				if(length > buffer.remaining()) {
+					throw new StreamCorruptedException("Bad stream chunk length: " + length);
+				}
+				data = new byte[length];
+				buffer.readBytes(data, 0, length);
+			}
+			return new StreamPacket(streamId, type, sequence, channel, data);
+		}
+
+	}
+
+}
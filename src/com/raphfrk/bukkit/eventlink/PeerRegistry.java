@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+// Trusted servers from the client keystore, loaded once and kept until the keystore changes
+//
+// The add and delete commands invalidate the registry when they write the keystore. Edits
+// made outside the plugin are picked up by checking the file's size and modified time, at
+// most once per checkInterval, so lookups on the routing path don't touch the disk.
+
+public class PeerRegistry {
+
+	private static final long checkInterval = 5000;
+
+	private final File file;
+	private final String password;
+
+	private final Object loadSync = new Object();
+
+	private volatile List<Peer> peers = null;
+	private volatile long lastChecked = 0;
+	private long lastModified = -1;
+	private long length = -1;
+
+	PeerRegistry(File file, String password) {
+		this.file = file;
+		this.password = password;
+	}
+
+	static class Peer {
+
+		final String alias;
+		final String name;
+		// null if the alias has no address
+		final String address;
+		final String hostname;
+		final int portnum;
+		final Certificate certificate;
+
+		Peer(String alias, Certificate certificate) {
+			this.alias = alias;
+			this.certificate = certificate;
+			String[] split = alias.split(";");
+			name = split[0];
+			if(split.length > 1) {
+				address = split[1];
+				hostname = SSLUtils.getHostname(address);
+				portnum = SSLUtils.getPortnum(address);
+			} else {
+				address = null;
+				hostname = null;
+				portnum = -1;
+			}
+		}
+
+		boolean hasAddress() {
+			return address != null;
+		}
+
+	}
+
+	// The list must not be changed
+
+	List<Peer> getPeers() {
+		List<Peer> current = peers;
+		long now = System.currentTimeMillis();
+		if(current != null && now < lastChecked + checkInterval) {
+			return current;
+		}
+		synchronized(loadSync) {
+			lastChecked = now;
+			if(peers != null && file.lastModified() == lastModified && file.length() == length) {
+				return peers;
+			}
+			peers = load();
+			return peers;
+		}
+	}
+
+	List<String> getAliases() {
+		List<String> aliases = new ArrayList<String>();
+		for(Peer peer : getPeers()) {
+			aliases.add(peer.alias);
+		}
+		return aliases;
+	}
+
+	void invalidate() {
+		synchronized(loadSync) {
+			peers = null;
+		}
+	}
+
+	private List<Peer> load() {
+
+		lastModified = file.lastModified();
+		length = file.length();
+
+		KeyStore ks = SSLUtils.loadKeyStore(file, password);
+		if(ks == null) {
+			return Collections.emptyList();
+		}
+
+		List<Peer> loaded = new ArrayList<Peer>();
+		try {
+			Enumeration<String> aliases = ks.aliases();
+			while(aliases.hasMoreElements()) {
+				String alias = aliases.nextElement();
+				loaded.add(new Peer(alias, ks.getCertificate(alias)));
+			}
+		} catch (KeyStoreException e) {
+			EventLink.logger.log("Unable to read trusted servers from " + file);
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(loaded);
+
+	}
+
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Payload of a binary frame that is only passing through this server
+// The bytes are forwarded as they arrived, so relays never need the payload class
+// Payload bytes only refer to symbols by index, so they are valid on any binary link
+//
+// Also used when one packet goes out over several links, the payload is encoded once
+// and every link only writes its own header in front of the shared bytes
+// Those bytes are in a pooled buffer, each link holds a reference and releases it once
+// the frame is encoded, the buffer goes back to the pool with the last one
+
+public class RawPayload {
+
+	final int tag;
+	final String[] symbols;
+	final byte[] data;
+	final int length;
+
+	private final WireBuffer buffer;
+	private final AtomicInteger references;
+
+	RawPayload(int tag, String[] symbols, byte[] data) {
+		this.tag = tag;
+		this.symbols = symbols;
+		this.data = data;
+		this.length = data.length;
+		this.buffer = null;
+		this.references = null;
+	}
+
+	// Starts with one reference, held by the caller
+
+	RawPayload(int tag, String[] symbols, WireBuffer buffer) {
+		this.tag = tag;
+		this.symbols = symbols;
+		this.data = buffer.data;
+		this.length = buffer.limit;
+		this.buffer = buffer;
+		this.references = new AtomicInteger(1);
+	}
+
+	void retain() {
+		if(references != null) {
+			references.incrementAndGet();
+		}
+	}
+
+	// A reference that is never released only means the buffer is left to the GC
+
+	void release() {
+		if(references != null && references.decrementAndGet() == 0) {
+			PacketCodec.framePool.release(buffer);
+		}
+	}
+
+	// Needed when the packet is delivered locally or sent over a legacy link
+
+	Object decode() throws IOException, ClassNotFoundException {
+		WireBuffer buffer = new WireBuffer(data, 0, length);
+		for(String symbol : symbols) {
+			buffer.addSymbol(symbol);
+		}
+		return PacketCodec.decodePayload(tag, buffer);
+	}
+
+	public String toString() {
+		return "raw payload, tag " + tag + ", " + length + " bytes";
+	}
+
+}
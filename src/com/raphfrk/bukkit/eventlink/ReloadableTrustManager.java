@@ -29,15 +29,19 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
+// The delegate is built off to the side on reload and then swapped in, so trust checks
+// never wait on a reload or on each other
+
 class ReloadableTrustManager implements X509TrustManager  {
 
-	Object syncObject = new Object();
-	private X509TrustManager trustManager = null;
+	private final Object reloadSync = new Object();
+	private final AtomicReference<X509TrustManager> trustManager = new AtomicReference<X509TrustManager>();
 
 	public ReloadableTrustManager(File clientFile, String password) {
 		reloadTrustStore(clientFile, password);
@@ -45,101 +49,112 @@ class ReloadableTrustManager implements X509TrustManager  {
 
 	public void checkClientTrusted(X509Certificate[] arg0, String arg1)
 	throws CertificateException {
-		synchronized(syncObject) {
-			trustManager.checkClientTrusted(arg0, arg1);
-		}
-
+		getDelegate().checkClientTrusted(arg0, arg1);
 	}
 
 	public void checkServerTrusted(X509Certificate[] arg0, String arg1)
 	throws CertificateException {
-		synchronized(syncObject) {
-			trustManager.checkServerTrusted(arg0, arg1);
-		}
-
+		getDelegate().checkServerTrusted(arg0, arg1);
 	}
 
 	public X509Certificate[] getAcceptedIssuers() {
-		synchronized(syncObject) {
-			return trustManager.getAcceptedIssuers();
-		}
+		X509TrustManager current = trustManager.get();
+		return current == null ? new X509Certificate[0] : current.getAcceptedIssuers();
 	}
 
 	X509TrustManager getTrustManager() {
-		return trustManager;
+		return trustManager.get();
 	}
 
-	boolean reloadTrustStore( File clientFile,  String password ) {
-
-		synchronized(syncObject) {
-			char[] passwordArray = password.toCharArray();
+	private X509TrustManager getDelegate() throws CertificateException {
+		X509TrustManager current = trustManager.get();
+		if(current == null) {
+			throw new CertificateException("Trust store not loaded");
+		}
+		return current;
+	}
 
-			KeyStore ks;
+	boolean reloadTrustStore( File clientFile,  String password ) {
 
-			if( clientFile == null || !clientFile.exists() ) {
+		// Only reloads are serialized, checks keep using the old delegate until the swap
+		synchronized(reloadSync) {
+			X509TrustManager loaded = loadTrustManager(clientFile, password);
+			if(loaded == null) {
 				return false;
 			}
+			trustManager.set(loaded);
+			return true;
+		}
 
-			FileInputStream in = null;
+	}
 
-			synchronized(SSLUtils.fileLock) {
-				try {
-					ks = KeyStore.getInstance("JKS");
-					in = new FileInputStream(clientFile);
-					ks.load(in, passwordArray);
-
-				} catch (KeyStoreException e) {
-					MiscUtils.defaultLog.log("Keystore creation error");
-					e.printStackTrace();
-					return false;
-				} catch (NoSuchAlgorithmException e) {
-					e.printStackTrace();
-					return false;
-				} catch (CertificateException e) {
-					e.printStackTrace();
-					return false;
-				} catch (IOException e) {
-					e.printStackTrace();
-					return false;
-				} finally {
-					try {
-						if( in != null ) {
-							in.close();
-						}
-					} catch (IOException e) {}
-				}
-			}
+	private static X509TrustManager loadTrustManager( File clientFile,  String password ) {
 
-			TrustManagerFactory trustManagerFactory;
-			try {
-				trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-			} catch (NoSuchAlgorithmException e1) {
-				MiscUtils.defaultLog.log("trust store no such algorithm error on reload");
-				e1.printStackTrace();
-				return false;
-			}
+		char[] passwordArray = password.toCharArray();
+
+		KeyStore ks;
+
+		if( clientFile == null || !clientFile.exists() ) {
+			return null;
+		}
+
+		FileInputStream in = null;
 
+		synchronized(SSLUtils.fileLock) {
 			try {
-				trustManagerFactory.init(ks);
+				ks = KeyStore.getInstance("JKS");
+				in = new FileInputStream(clientFile);
+				ks.load(in, passwordArray);
+
 			} catch (KeyStoreException e) {
-				MiscUtils.defaultLog.log("trust store init error on reload");
+				MiscUtils.defaultLog.log("Keystore creation error");
 				e.printStackTrace();
-				return false;
+				return null;
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+				return null;
+			} catch (CertificateException e) {
+				e.printStackTrace();
+				return null;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			} finally {
+				try {
+					if( in != null ) {
+						in.close();
+					}
+				} catch (IOException e) {}
 			}
+		}
 
-			TrustManager[] trustManagers = trustManagerFactory.getTrustManagers();
+		TrustManagerFactory trustManagerFactory;
+		try {
+			trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		} catch (NoSuchAlgorithmException e1) {
+			MiscUtils.defaultLog.log("trust store no such algorithm error on reload");
+			e1.printStackTrace();
+			return null;
+		}
 
-			for( TrustManager trustManager : trustManagers ) {
-				if( trustManager instanceof X509TrustManager ) {
-					this.trustManager = (X509TrustManager)trustManager;
-					return true;
-				}
-			}
+		try {
+			trustManagerFactory.init(ks);
+		} catch (KeyStoreException e) {
+			MiscUtils.defaultLog.log("trust store init error on reload");
+			e.printStackTrace();
+			return null;
+		}
 
-			return false;
+		TrustManager[] trustManagers = trustManagerFactory.getTrustManagers();
 
+		for( TrustManager trustManager : trustManagers ) {
+			if( trustManager instanceof X509TrustManager ) {
+				return (X509TrustManager)trustManager;
+			}
 		}
 
+		return null;
+
 	}
 
 }
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Next hop grouping of destination lists, for plugins that send to the same servers over and over
+//
+// A plan splits the destinations into groups that share a next hop, the same way sendPacket
+// would. Plans are tagged with the routing table and its generation and are rebuilt once the
+// table changes. Lookups use a per thread probe key, so a hit doesn't allocate.
+
+public class RouteCache {
+
+	private final EventLink p;
+	private final String tableName;
+	private final int maxSize;
+
+	private final ConcurrentHashMap<Key,Plan> plans = new ConcurrentHashMap<Key,Plan>();
+
+	private final ThreadLocal<Key> probes = new ThreadLocal<Key>() {
+		@Override
+		protected Key initialValue() {
+			return new Key();
+		}
+	};
+
+	RouteCache(EventLink p, String tableName, int maxSize) {
+		this.p = p;
+		this.tableName = tableName;
+		this.maxSize = maxSize;
+	}
+
+	static class Plan {
+
+		final RoutingTable table;
+		final int generation;
+
+		// Shared between sends, must not be changed
+		final String[][] groups;
+		final String[] nextHops;
+
+		Plan(RoutingTable table, int generation, String[][] groups, String[] nextHops) {
+			this.table = table;
+			this.generation = generation;
+			this.groups = groups;
+			this.nextHops = nextHops;
+		}
+
+	}
+
+	// Returns null if there is no table yet or the list includes this server or a null,
+	// those are left to the normal path
+
+	Plan getPlan(String[] destinations) {
+
+		RoutingTableManager routingTableManager = p.routingTableManager;
+		if(maxSize <= 0 || routingTableManager == null) {
+			return null;
+		}
+
+		RoutingTable table = routingTableManager.getTable(tableName);
+		if(table == null) {
+			return null;
+		}
+
+		Key probe = probes.get();
+		probe.set(destinations);
+		Plan plan = plans.get(probe);
+		probe.set(null);
+
+		if(plan != null && plan.table == table && plan.generation == table.getGeneration()) {
+			return plan;
+		}
+
+		plan = buildPlan(table, destinations);
+		if(plan == null) {
+			return null;
+		}
+
+		if(plans.size() >= maxSize) {
+			plans.clear();
+		}
+		Key key = new Key();
+		key.set(destinations.clone());
+		plans.put(key, plan);
+
+		return plan;
+
+	}
+
+	private Plan buildPlan(RoutingTable table, String[] destinations) {
+
+		// Read before the entries, so a plan built during an update is only ever marked as older
+		int generation = table.getGeneration();
+
+		final int length = destinations.length;
+		String[] hops = new String[length];
+		for(int cnt = 0; cnt < length; cnt++) {
+			String destination = destinations[cnt];
+			if(destination == null || destination.equals(p.serverName)) {
+				return null;
+			}
+			RoutingTableEntry entry = table.getEntry(destination);
+			hops[cnt] = entry == null ? null : entry.getNextServer();
+		}
+
+		boolean[] grouped = new boolean[length];
+		String[][] groups = new String[length][];
+		String[] nextHops = new String[length];
+		String[] targets = new String[length];
+		int groupCount = 0;
+
+		for(int cnt1 = 0; cnt1 < length; cnt1++) {
+			if(grouped[cnt1]) {
+				continue;
+			}
+			int count = 0;
+			targets[count++] = destinations[cnt1];
+			String nextHop = hops[cnt1];
+			if(nextHop != null) {
+				for(int cnt2 = cnt1 + 1; cnt2 < length; cnt2++) {
+					if(!grouped[cnt2] && nextHop.equals(hops[cnt2])) {
+						grouped[cnt2] = true;
+						targets[count++] = destinations[cnt2];
+					}
+				}
+			}
+			groups[groupCount] = Arrays.copyOf(targets, count);
+			nextHops[groupCount] = nextHop;
+			groupCount++;
+		}
+
+		return new Plan(table, generation, Arrays.copyOf(groups, groupCount), Arrays.copyOf(nextHops, groupCount));
+
+	}
+
+	private static class Key {
+
+		private String[] destinations;
+		private int hash;
+
+		void set(String[] destinations) {
+			this.destinations = destinations;
+			this.hash = destinations == null ? 0 : Arrays.hashCode(destinations);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)o;
+			return hash == other.hash && Arrays.equals(destinations, other.destinations);
+		}
+
+	}
+
+}
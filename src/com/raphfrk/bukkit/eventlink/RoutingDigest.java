@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+
+// Summary of one routing table, sent in place of the periodic resend of every table
+//
+// The owner of a table sends its version and one hash over all entries to each neighbour. If the
+// neighbour's copy has a different version and hash, it replies with the hash of each bucket of
+// its copy, and the owner sends a RoutingUpdate with just the buckets that differ.
+
+public class RoutingDigest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	final String tableName;
+	final long version;
+	final long tableHash;
+	// Only set when asking the owner for the buckets that differ
+	final long[] bucketHashes;
+
+	RoutingDigest(String tableName, long version, long tableHash, long[] bucketHashes) {
+		this.tableName = tableName;
+		this.version = version;
+		this.tableHash = tableHash;
+		this.bucketHashes = bucketHashes;
+	}
+
+	boolean isRequest() {
+		return bucketHashes != null;
+	}
+
+	public String toString() {
+		return "Routing digest for " + tableName + " version " + version + (isRequest() ? ", repair request" : "");
+	}
+
+	void encode(WireBuffer buffer) throws IOException {
+		buffer.writeSymbol(tableName);
+		buffer.writeVarLong(version);
+		buffer.writeLong(tableHash);
+		if(bucketHashes == null) {
+			buffer.writeVarInt(0);
+		} else {
+			buffer.writeVarInt(bucketHashes.length + 1);
+			for(long hash : bucketHashes) {
+				buffer.writeLong(hash);
+			}
+		}
+	}
+
+	static RoutingDigest decode(WireBuffer buffer) throws IOException {
+		String tableName = buffer.readSymbol();
+		long version = buffer.readVarLong();
+		long tableHash = buffer.readLong();
+		int count = buffer.readVarInt() - 1;
+		long[] bucketHashes = null;
+		if(count >= 0) {
+			if(count != RoutingTable.digestBuckets) {
+				throw new StreamCorruptedException("Bad routing digest bucket count: " + count);
+			}
+			bucketHashes = new long[count];
+			for(int cnt = 0; cnt < count; cnt++) {
+				bucketHashes[cnt] = buffer.readLong();
+			}
+		}
+		return new RoutingDigest(tableName, version, tableHash, bucketHashes);
+	}
+
+}
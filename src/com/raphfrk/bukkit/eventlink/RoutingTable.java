@@ -21,11 +21,15 @@
  ******************************************************************************/
 package com.raphfrk.bukkit.eventlink;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
 
 public class RoutingTable implements Serializable {
 
@@ -37,8 +41,36 @@ public class RoutingTable implements Serializable {
 
 	private boolean changed = true;
 
+	// Read only copy of the entries, so lookups don't need the lock
+	// Dropped on every change and rebuilt by the next lookup, so a burst of changes costs one copy
+	// Transient, tables read from serialized packets build it the first time it is needed
+	private transient volatile Map<String,RoutingTableEntry> snapshot = null;
+	// Moves on after each new snapshot, for caches built from the entries
+	private transient volatile int generation = 0;
+
+	// Not sent with the table, see logChange
+	private static final int maxChangeLog = 256;
+	private transient long version;
+	private transient long logStart;
+	private transient TreeMap<Long,String> changeLog;
+	private transient HashMap<String,Long> changedAt;
+
+	static final int digestBuckets = 32;
+	static final int allBuckets = -1;
+	private transient long[] bucketHashes = null;
+	private transient long bucketHashVersion;
+
+	// What each neighbour last advertised, used to find another route when one is lost
+	// and to check the neighbour's digests
+	private transient HashMap<String,HashMap<String,RoutingTableEntry>> peerEntries;
+
 	RoutingTable(String name) {
 		this.tableName = name;
+		this.version = System.currentTimeMillis() * 1000;
+		this.logStart = version;
+		this.changeLog = new TreeMap<Long,String>();
+		this.changedAt = new HashMap<String,Long>();
+		this.peerEntries = new HashMap<String,HashMap<String,RoutingTableEntry>>();
 	}
 	
 	@Override
@@ -59,23 +91,62 @@ public class RoutingTable implements Serializable {
 		return sb.toString();
 	}
 	
-	public synchronized Map<String,RoutingTableEntry> getEntries() {
+	public Map<String,RoutingTableEntry> getEntries() {
 		
-		Set<String> keys = tableEntries.keySet();
+		Map<String,RoutingTableEntry> entries = getSnapshot();
 		HashMap<String,RoutingTableEntry> tableMap = new HashMap<String,RoutingTableEntry>();
 		
-		for(String key : keys) {
-			RoutingTableEntry current = tableEntries.get(key);
-			tableMap.put(key, current.clone());
+		for(Map.Entry<String,RoutingTableEntry> entry : entries.entrySet()) {
+			tableMap.put(entry.getKey(), entry.getValue().clone());
 		}
 		return tableMap;
 		
 	}
 
+	// The entries in the snapshot must not be changed
+
+	Map<String,RoutingTableEntry> getSnapshot() {
+		Map<String,RoutingTableEntry> current = snapshot;
+		if(current == null) {
+			synchronized(this) {
+				if(snapshot == null) {
+					publish();
+				}
+				current = snapshot;
+			}
+		}
+		return current;
+	}
+
+	RoutingTableEntry getEntry(String entryName) {
+		return getSnapshot().get(entryName);
+	}
+
+	// Must be called with the lock held
+	// Entries are never changed once they are in the table, changes put in a new entry,
+	// so the snapshot can share them
+
+	private void publish() {
+		snapshot = Collections.unmodifiableMap(new HashMap<String,RoutingTableEntry>(tableEntries));
+	}
+
+	// Must be called with the lock held, after every change to the entries
+
+	private void entriesChanged() {
+		snapshot = null;
+		generation++;
+	}
+
+	int getGeneration() {
+		return generation;
+	}
+
 	public synchronized boolean deleteEntry(String entryName) {
 		if(tableEntries.containsKey(entryName)) {
 			tableEntries.remove(entryName);
 			changed = true;
+			logChange(entryName);
+			entriesChanged();
 			return true;
 		} else {
 			return false;
@@ -98,22 +169,32 @@ public class RoutingTable implements Serializable {
 
 		tableEntries.put(entryName, tableEntry);
 		changed = true;
+		logChange(entryName);
+		entriesChanged();
 		return true;
 	}
 	
-	public synchronized void clearRoutesThrough(String server) {
-		Iterator<String> itr = tableEntries.keySet().iterator();
+	public synchronized void clearRoutesThrough(String server, String thisServer) {
+		peerEntries.remove(server);
+
+		ArrayList<String> lost = new ArrayList<String>();
+		for(Map.Entry<String,RoutingTableEntry> entry : tableEntries.entrySet()) {
+			if(entry.getValue().getNextServer().equals(server)) {
+				lost.add(entry.getKey());
+			}
+		}
 		
-		while(itr.hasNext()) {
-			String entryName = itr.next();
-			
-			RoutingTableEntry tableEntry = tableEntries.get(entryName);
-			
-			if(tableEntry.getNextServer().equals(server)) {
-				itr.remove();
-				changed = true;
+		for(String entryName : lost) {
+			tableEntries.remove(entryName);
+			RoutingTableEntry route = findRoute(null, thisServer, entryName);
+			if(route != null) {
+				tableEntries.put(entryName, route);
 			}
-			
+			changed = true;
+			logChange(entryName);
+		}
+		if(!lost.isEmpty()) {
+			entriesChanged();
 		}
 	}
 
@@ -123,46 +204,287 @@ public class RoutingTable implements Serializable {
 			return false;
 		}
 
-		Iterator<String> itr = tableEntries.keySet().iterator();
-		while(itr.hasNext()) {
-			String entryName = itr.next();
-			
-			RoutingTableEntry tableEntry = tableEntries.get(entryName);
+		combineBuckets(source, thisServer, other.tableEntries, allBuckets);
 
-			RoutingTableEntry otherTableEntry = other.tableEntries.get(entryName);
+		return changed;
 
-			if(tableEntry.getNextServer().equals(source)) {
-				if(otherTableEntry == null || otherTableEntry.getHops() >= tableEntry.getHops()) {
-					changed = true;
-					itr.remove();
-				}
+	}
+
+	// Replaces everything learnt from source for entries in the given digest buckets
+
+	synchronized void combineBuckets(String source, String thisServer, Map<String,RoutingTableEntry> otherEntries, int buckets) {
+
+		boolean modified = false;
+
+		HashMap<String,RoutingTableEntry> mirror = getMirror(source);
+
+		HashSet<String> dropped = new HashSet<String>();
+		for(String entryName : mirror.keySet()) {
+			if(inBuckets(entryName, buckets) && !otherEntries.containsKey(entryName)) {
+				dropped.add(entryName);
 			}
 		}
+		for(Map.Entry<String,RoutingTableEntry> entry : tableEntries.entrySet()) {
+			String entryName = entry.getKey();
+			if(entry.getValue().getNextServer().equals(source) && inBuckets(entryName, buckets) && !otherEntries.containsKey(entryName)) {
+				dropped.add(entryName);
+			}
+		}
+		for(String entryName : dropped) {
+			mirror.remove(entryName);
+			modified |= combineEntry(source, thisServer, entryName, null);
+		}
 
-		for(String entryName : other.tableEntries.keySet()) {
-			
-			RoutingTableEntry tableEntry = tableEntries.get(entryName);
+		for(Map.Entry<String,RoutingTableEntry> entry : otherEntries.entrySet()) {
+			if(!inBuckets(entry.getKey(), buckets)) {
+				continue;
+			}
+			mirror.put(entry.getKey(), entry.getValue().clone());
+			modified |= combineEntry(source, thisServer, entry.getKey(), entry.getValue());
+		}
 
-			RoutingTableEntry otherTableEntry = other.tableEntries.get(entryName);
+		if(modified) {
+			entriesChanged();
+		}
 
-			if(tableEntry == null || tableEntry.getHops() > otherTableEntry.getHops() + 1 ) {
-				if(!otherTableEntry.getNextServer().equals(thisServer)) {
-					changed = true;
+	}
+
+	// Applies only the entries that changed at source, a null entry was removed there
+
+	synchronized void combineChanges(String source, String thisServer, String[] entryNames, RoutingTableEntry[] otherEntries) {
+
+		boolean modified = false;
+
+		HashMap<String,RoutingTableEntry> mirror = getMirror(source);
+
+		for(int cnt = 0; cnt < entryNames.length; cnt++) {
+			if(otherEntries[cnt] == null) {
+				mirror.remove(entryNames[cnt]);
+			} else {
+				mirror.put(entryNames[cnt], otherEntries[cnt].clone());
+			}
+			modified |= combineEntry(source, thisServer, entryNames[cnt], otherEntries[cnt]);
+		}
+
+		if(modified) {
+			entriesChanged();
+		}
+
+	}
+
+	// A route through source is dropped if source lost it or now has it further away,
+	// and is then replaced by the shortest route any neighbour still advertises
+	// Otherwise source's entry is used if it is shorter than the current route
+
+	private boolean combineEntry(String source, String thisServer, String entryName, RoutingTableEntry otherTableEntry) {
+
+		RoutingTableEntry tableEntry = tableEntries.get(entryName);
 
-					RoutingTableEntry newTableEntry = new RoutingTableEntry();
-					newTableEntry.setHops(otherTableEntry.getHops() + 1);
-					newTableEntry.setLocation(otherTableEntry.getLocation());
-					newTableEntry.setNextServer(source);
-					tableEntries.put(entryName, newTableEntry);
+		boolean modified = false;
+
+		if(tableEntry != null && tableEntry.getNextServer().equals(source)) {
+			if(otherTableEntry == null || otherTableEntry.getHops() >= tableEntry.getHops()) {
+				tableEntries.remove(entryName);
+				RoutingTableEntry route = findRoute(source, thisServer, entryName);
+				if(route != null) {
+					tableEntries.put(entryName, route);
+				}
+				modified = route == null || !route.equal(tableEntry);
+				tableEntry = null;
+			}
+		} else if(tableEntry == null && otherTableEntry != null && !otherTableEntry.getNextServer().equals(thisServer)) {
+			tableEntries.put(entryName, routeVia(source, otherTableEntry));
+			modified = true;
+		}
+
+		if(tableEntry != null && otherTableEntry != null) {
+			if(tableEntry.getHops() > otherTableEntry.getHops() + 1 ) {
+				if(!otherTableEntry.getNextServer().equals(thisServer)) {
+					modified = true;
+					tableEntries.put(entryName, routeVia(source, otherTableEntry));
 				}	
 			} else if (tableEntry.getNextServer().equals(source) && !tableEntry.getLocation().equals(otherTableEntry.getLocation())) {
-				changed = true;
-				tableEntry.setLocation(otherTableEntry.getLocation());
+				modified = true;
+				RoutingTableEntry moved = tableEntry.clone();
+				moved.setLocation(otherTableEntry.getLocation());
+				tableEntries.put(entryName, moved);
 			}
 		}
 
-		return changed;
+		if(modified) {
+			changed = true;
+			logChange(entryName);
+		}
 
+		return modified;
+
+	}
+
+	// Shortest route advertised by the neighbours, ties go to preferred
+	// Routes the neighbour gets through thisServer are skipped
+
+	private RoutingTableEntry findRoute(String preferred, String thisServer, String entryName) {
+		String bestServer = null;
+		RoutingTableEntry best = null;
+		if(preferred != null) {
+			HashMap<String,RoutingTableEntry> mirror = peerEntries.get(preferred);
+			RoutingTableEntry entry = mirror == null ? null : mirror.get(entryName);
+			if(entry != null && !entry.getNextServer().equals(thisServer)) {
+				bestServer = preferred;
+				best = entry;
+			}
+		}
+		for(Map.Entry<String,HashMap<String,RoutingTableEntry>> peer : peerEntries.entrySet()) {
+			RoutingTableEntry entry = peer.getValue().get(entryName);
+			if(entry == null || entry.getNextServer().equals(thisServer)) {
+				continue;
+			}
+			if(best == null || entry.getHops() < best.getHops()) {
+				bestServer = peer.getKey();
+				best = entry;
+			}
+		}
+		return best == null ? null : routeVia(bestServer, best);
+	}
+
+	private static RoutingTableEntry routeVia(String source, RoutingTableEntry otherTableEntry) {
+		RoutingTableEntry newTableEntry = new RoutingTableEntry();
+		newTableEntry.setHops(otherTableEntry.getHops() + 1);
+		newTableEntry.setLocation(otherTableEntry.getLocation());
+		newTableEntry.setNextServer(source);
+		return newTableEntry;
+	}
+
+	private HashMap<String,RoutingTableEntry> getMirror(String source) {
+		HashMap<String,RoutingTableEntry> mirror = peerEntries.get(source);
+		if(mirror == null) {
+			mirror = new HashMap<String,RoutingTableEntry>();
+			peerEntries.put(source, mirror);
+		}
+		return mirror;
+	}
+
+	// Version of the table and the version each entry last changed at, so peers can be sent
+	// just the entries changed since the version they have
+	// Versions start from the creation time, so a recreated table doesn't reuse old numbers
+
+	private void logChange(String entryName) {
+		version++;
+		Long previous = changedAt.put(entryName, version);
+		if(previous != null) {
+			changeLog.remove(previous);
+		}
+		changeLog.put(version, entryName);
+		while(changeLog.size() > maxChangeLog + tableEntries.size()) {
+			Map.Entry<Long,String> oldest = changeLog.pollFirstEntry();
+			changedAt.remove(oldest.getValue());
+			logStart = oldest.getKey();
+		}
+	}
+
+	synchronized long getVersion() {
+		return version;
+	}
+
+	synchronized RoutingUpdate getFullUpdate() {
+		return getBucketUpdate(allBuckets);
+	}
+
+	// Full state for just the entries in the given digest buckets
+
+	synchronized RoutingUpdate getBucketUpdate(int buckets) {
+		ArrayList<String> entryNames = new ArrayList<String>();
+		ArrayList<RoutingTableEntry> entries = new ArrayList<RoutingTableEntry>();
+		for(Map.Entry<String,RoutingTableEntry> entry : tableEntries.entrySet()) {
+			if(inBuckets(entry.getKey(), buckets)) {
+				entryNames.add(entry.getKey());
+				entries.add(entry.getValue().clone());
+			}
+		}
+		return new RoutingUpdate(tableName, RoutingUpdate.typeFull, version, version, buckets, entryNames.toArray(new String[0]), entries.toArray(new RoutingTableEntry[0]));
+	}
+
+	// Returns null if the peer is already up to date, or a full update if the log
+	// doesn't go back far enough
+
+	synchronized RoutingUpdate getUpdate(long fromVersion) {
+		if(fromVersion == version) {
+			return null;
+		}
+		if(fromVersion < logStart || fromVersion > version) {
+			return getFullUpdate();
+		}
+		Map<Long,String> changes = changeLog.tailMap(fromVersion, false);
+		String[] entryNames = new String[changes.size()];
+		RoutingTableEntry[] entries = new RoutingTableEntry[entryNames.length];
+		int cnt = 0;
+		for(String entryName : changes.values()) {
+			RoutingTableEntry entry = tableEntries.get(entryName);
+			entryNames[cnt] = entryName;
+			entries[cnt] = entry == null ? null : entry.clone();
+			cnt++;
+		}
+		return new RoutingUpdate(tableName, RoutingUpdate.typeDelta, fromVersion, version, 0, entryNames, entries);
+	}
+
+	// Digests split the entries into buckets by name and hash each bucket, so two copies of a
+	// table can be compared cheaply and only the buckets that differ need to be sent
+
+	static int getBucket(String entryName) {
+		return (entryName.hashCode() & 0x7FFFFFFF) % digestBuckets;
+	}
+
+	private static boolean inBuckets(String entryName, int buckets) {
+		return (buckets & (1 << getBucket(entryName))) != 0;
+	}
+
+	synchronized RoutingDigest getDigest() {
+		return new RoutingDigest(tableName, version, combineHashes(getBucketHashes()), null);
+	}
+
+	// Hash of our own entries, cached until the next change
+	synchronized long[] getBucketHashes() {
+		if(bucketHashes == null || bucketHashVersion != version) {
+			bucketHashes = hashBuckets(tableEntries);
+			bucketHashVersion = version;
+		}
+		return bucketHashes.clone();
+	}
+
+	// Hash of what source last advertised
+	synchronized long[] getPeerBucketHashes(String source) {
+		HashMap<String,RoutingTableEntry> mirror = peerEntries.get(source);
+		return hashBuckets(mirror == null ? new HashMap<String,RoutingTableEntry>() : mirror);
+	}
+
+	private static long[] hashBuckets(Map<String,RoutingTableEntry> entries) {
+		long[] hashes = new long[digestBuckets];
+		for(Map.Entry<String,RoutingTableEntry> entry : entries.entrySet()) {
+			hashes[getBucket(entry.getKey())] += hashEntry(entry.getKey(), entry.getValue());
+		}
+		return hashes;
+	}
+
+	static long combineHashes(long[] hashes) {
+		long hash = 0;
+		for(long bucketHash : hashes) {
+			hash = hash * 31 + bucketHash;
+		}
+		return hash;
+	}
+
+	private static long hashEntry(String entryName, RoutingTableEntry entry) {
+		long hash = entryName.hashCode();
+		hash = hash * 31 + (entry.getNextServer() == null ? 0 : entry.getNextServer().hashCode());
+		hash = hash * 31 + (entry.getLocation() == null ? 0 : entry.getLocation().hashCode());
+		hash = hash * 31 + entry.getHops();
+		// Spread the bits, the bucket hash is a sum so similar entries mustn't cancel out
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
 	}
 
 	public synchronized String getTableName() {
@@ -184,4 +506,30 @@ public class RoutingTable implements Serializable {
 		}
 	}
 
+	synchronized void encode(WireBuffer buffer) throws IOException {
+		buffer.writeSymbol(tableName);
+		buffer.writeVarInt(tableEntries.size());
+		for(Map.Entry<String,RoutingTableEntry> entry : tableEntries.entrySet()) {
+			RoutingTableEntry tableEntry = entry.getValue();
+			buffer.writeString(entry.getKey());
+			buffer.writeSymbol(tableEntry.getNextServer());
+			buffer.writeSymbol(tableEntry.getLocation());
+			buffer.writeVarInt(tableEntry.getHops());
+		}
+	}
+
+	static RoutingTable decode(WireBuffer buffer) throws IOException {
+		RoutingTable table = new RoutingTable(buffer.readSymbol());
+		int size = buffer.readVarInt();
+		for(int cnt = 0; cnt < size; cnt++) {
+			String entryName = buffer.readString();
+			RoutingTableEntry tableEntry = new RoutingTableEntry();
+			tableEntry.setNextServer(buffer.readSymbol());
+			tableEntry.setLocation(buffer.readSymbol());
+			tableEntry.setHops(buffer.readVarInt());
+			table.tableEntries.put(entryName, tableEntry);
+		}
+		return table;
+	}
+
 }
@@ -21,19 +21,19 @@
  ******************************************************************************/
 package com.raphfrk.bukkit.eventlink;
 
-import java.io.File;
-import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RoutingTableManager {
 	
 	private final Thread t;
 	
-	private final String password;
-	
 	private boolean updatePending = false;
 	private final Object updateSync = new Object();
 	
@@ -43,17 +43,31 @@ public class RoutingTableManager {
 	private boolean end = false;
 	
 	ConcurrentHashMap<String,RoutingTable> routingTables = new ConcurrentHashMap<String,RoutingTable>();
+
+	// Table versions last sent to and received from each peer that takes routing deltas, by server then table
+	private final HashMap<String,HashMap<String,Long>> sentVersions = new HashMap<String,HashMap<String,Long>>();
+	private final HashMap<String,HashMap<String,Long>> receivedVersions = new HashMap<String,HashMap<String,Long>>();
+
+	// Repairs asked for, by "server/table", with the time they were asked
+	private final HashMap<String,Long> repairsPending = new HashMap<String,Long>();
+	private static final long repairTimeout = 30000;
+
+	// Changes are sent once the table has been quiet for the update window, but no sooner than
+	// the minimum interval after the last send and no later than the maximum delay after the first change
+	private final HashMap<String,UpdateSchedule> schedules = new HashMap<String,UpdateSchedule>();
+
+	// Routing packets are worked out under the monitor and queued in that order, then sent once
+	// it is released, so a full send queue never holds up the tables
+	private final ConcurrentLinkedQueue<Outgoing> outgoing = new ConcurrentLinkedQueue<Outgoing>();
+	private final AtomicBoolean flushing = new AtomicBoolean(false);
 	
-	RoutingTableManager(EventLink p, String password) {
+	RoutingTableManager(EventLink p) {
 		
 		this.p = p;
 		
-		this.password = password;
-		
 		RoutingTableUpdater routingTableUpdater = new RoutingTableUpdater();
 		
-		t = new Thread(routingTableUpdater);
-		t.setName("Routing table manager");
+		t = KillableThread.newThread(routingTableUpdater, "Routing table manager");
 		t.start();
 		
 	}
@@ -73,7 +87,14 @@ public class RoutingTableManager {
 		
 	}
 
-	public synchronized Map<String,RoutingTableEntry> getEntries(String table) {
+	// Lookups use the tables' published snapshots, so they don't block on updates
+	// and never wait for the manager lock
+
+	RoutingTable getTable(String table) {
+		return routingTables.get(table);
+	}
+
+	public Map<String,RoutingTableEntry> getEntries(String table) {
 		
 		RoutingTable routingTable = routingTables.get(table);
 		
@@ -84,18 +105,13 @@ public class RoutingTableManager {
 		
 	}
 	
-	public synchronized String getNextHop(String table, String name) {
+	public String getNextHop(String table, String name) {
 		RoutingTable routingTable = routingTables.get(table);
-		if(routingTable == null) {
-			return null;
-		}
-		Map<String, RoutingTableEntry> entries = routingTable.getEntries();
-		
-		if(entries == null) {
+		if(routingTable == null || name == null) {
 			return null;
 		}
 		
-		RoutingTableEntry entry = entries.get(name);
+		RoutingTableEntry entry = routingTable.getEntry(name);
 		if(entry == null) {
 			return null;
 		}
@@ -103,18 +119,13 @@ public class RoutingTableManager {
 		return entry.getNextServer();
 	}
 	
-	public synchronized String getLocation(String table, String name) {
+	public String getLocation(String table, String name) {
 		RoutingTable routingTable = routingTables.get(table);
-		if(routingTable == null) {
+		if(routingTable == null || name == null) {
 			return null;
 		}
-		Map<String, RoutingTableEntry> entries = routingTable.getEntries();
 		
-		if(entries == null) {
-			return null;
-		}
-		
-		RoutingTableEntry entry = entries.get(name);
+		RoutingTableEntry entry = routingTable.getEntry(name);
 		if(entry == null) {
 			return null;
 		}
@@ -122,24 +133,13 @@ public class RoutingTableManager {
 		return entry.getLocation();
 	}
 	
-	public synchronized Set<String> copyKeySet(String table) {
+	public Set<String> copyKeySet(String table) {
 		RoutingTable routingTable = routingTables.get(table);
 		if(routingTable == null) {
 			return null;
 		}
-		Map<String, RoutingTableEntry> entries = routingTable.getEntries();
-		
-		if(entries == null) {
-			return null;
-		}
 		
-		LinkedHashSet<String> newSet = new LinkedHashSet<String>();
-		
-		for(String key : entries.keySet()) {
-			newSet.add(key);
-		}
-		
-		return newSet;
+		return new LinkedHashSet<String>(routingTable.getSnapshot().keySet());
 	}
 	
 	public synchronized boolean addEntry(String table, String name) {
@@ -164,6 +164,7 @@ public class RoutingTableManager {
 		}
 		
 		routingTables.remove(table);
+		schedules.remove(table);
 		flagUpdatePending();
 		return true;
 	}
@@ -201,12 +202,124 @@ public class RoutingTableManager {
 		
 		boolean ret = rt.combineTable(source, p.serverName, routingTable);
 		
-		sendUpdatedTables();
 		flagUpdatePending();
 		
 		return ret;
 		
 	}
+
+	public void applyUpdate(String source, RoutingUpdate update) {
+		combineUpdate(source, update);
+		flushSends();
+	}
+
+	private synchronized void combineUpdate(String source, RoutingUpdate update) {
+
+		String table = update.tableName;
+
+		HashMap<String,Long> versions = getVersions(receivedVersions, source);
+
+		RoutingTable rt = getOrCreateTable(table);
+
+		if(update.type == RoutingUpdate.typeDelta) {
+			Long current = versions.get(table);
+			if(current == null || current.longValue() != update.fromVersion) {
+				// Missed an update, later deltas are dropped until the repair arrives
+				versions.remove(table);
+				requestRepair(source, rt);
+				return;
+			}
+			rt.combineChanges(source, p.serverName, update.entryNames, update.entries);
+		} else {
+			HashMap<String,RoutingTableEntry> entries = new HashMap<String,RoutingTableEntry>();
+			for(int cnt = 0; cnt < update.entryNames.length; cnt++) {
+				entries.put(update.entryNames[cnt], update.entries[cnt]);
+			}
+			rt.combineBuckets(source, p.serverName, entries, update.buckets);
+			repairsPending.remove(source + "/" + table);
+		}
+		versions.put(table, update.toVersion);
+
+		flagUpdatePending();
+
+	}
+
+	public void applyDigest(String source, RoutingDigest digest) {
+		checkDigest(source, digest);
+		flushSends();
+	}
+
+	private synchronized void checkDigest(String source, RoutingDigest digest) {
+
+		String table = digest.tableName;
+
+		if(digest.isRequest()) {
+			// The neighbour's copy of one of our tables is out of step, send the buckets that differ
+			RoutingTable rt = routingTables.get(table);
+			if(rt == null) {
+				return;
+			}
+			long[] hashes = rt.getBucketHashes();
+			int buckets = 0;
+			for(int cnt = 0; cnt < hashes.length; cnt++) {
+				if(hashes[cnt] != digest.bucketHashes[cnt]) {
+					buckets |= 1 << cnt;
+				}
+			}
+			queueUpdate(source, rt.getBucketUpdate(buckets));
+			return;
+		}
+
+		HashMap<String,Long> versions = getVersions(receivedVersions, source);
+		Long current = versions.get(table);
+		if(current != null && current.longValue() == digest.version) {
+			return;
+		}
+
+		RoutingTable rt = getOrCreateTable(table);
+		if(RoutingTable.combineHashes(rt.getPeerBucketHashes(source)) == digest.tableHash) {
+			// Same entries, just missed the version
+			versions.put(table, digest.version);
+			repairsPending.remove(source + "/" + table);
+			return;
+		}
+
+		versions.remove(table);
+		requestRepair(source, rt);
+
+	}
+
+	// Sends the hashes of our copy of source's table, source answers with the buckets that differ
+	// Only asked once per table unless no answer comes within repairTimeout
+
+	private void requestRepair(String source, RoutingTable rt) {
+		String key = source + "/" + rt.getTableName();
+		long now = System.currentTimeMillis();
+		Long requested = repairsPending.get(key);
+		if(requested != null && now < requested + repairTimeout) {
+			return;
+		}
+		repairsPending.put(key, now);
+		long[] hashes = rt.getPeerBucketHashes(source);
+		outgoing.add(new Outgoing(source, new RoutingDigest(rt.getTableName(), 0, RoutingTable.combineHashes(hashes), hashes), null));
+	}
+
+	private RoutingTable getOrCreateTable(String table) {
+		if(!routingTables.containsKey(table)) {
+			RoutingTable rt = new RoutingTable(table);
+			routingTables.put(table, rt);
+		}
+		return routingTables.get(table);
+	}
+
+	private static HashMap<String,Long> getVersions(HashMap<String,HashMap<String,Long>> versionMap, String server) {
+		HashMap<String,Long> versions = versionMap.get(server);
+		if(versions == null) {
+			versions = new HashMap<String,Long>();
+			versionMap.put(server, versions);
+		}
+		return versions;
+	}
 	
 	public synchronized void listTablesToLog() {
 		
@@ -217,18 +330,49 @@ public class RoutingTableManager {
 
 	}
 	
-	private synchronized void sendUpdatedTables() {
+	// Sends the changed tables that are due and returns the time the next one is due, or -1 if none are waiting
+
+	private synchronized long sendUpdatedTables() {
+		
+		long now = System.currentTimeMillis();
+		long nextDue = -1;
 		
 		for(String key:routingTables.keySet()) {
 			
 			RoutingTable table = routingTables.get(key);
-			if(table.getChanged()) {
+			if(!table.getChanged()) {
+				continue;
+			}
+			
+			UpdateSchedule schedule = schedules.get(key);
+			if(schedule == null) {
+				schedule = new UpdateSchedule();
+				schedules.put(key, schedule);
+			}
+			
+			long version = table.getVersion();
+			if(schedule.firstChange < 0) {
+				schedule.firstChange = now;
+				schedule.lastChange = now;
+				schedule.version = version;
+			} else if(schedule.version != version) {
+				schedule.lastChange = now;
+				schedule.version = version;
+			}
+			
+			long due = schedule.getDue(p.routingUpdateWindow, p.routingUpdateMinInterval, p.routingUpdateMaxDelay);
+			if(due <= now) {
 				table.clearChanged();
+				schedule.sent(now);
 				sendTableToAll(table);
+			} else if(nextDue < 0 || due < nextDue) {
+				nextDue = due;
 			}
 			
 		}
 		
+		return nextDue;
+		
 	}
 	
 	public synchronized void clearRoutesThrough(String server) {
@@ -236,51 +380,124 @@ public class RoutingTableManager {
 		for(String key:routingTables.keySet()) {
 			
 			RoutingTable table = routingTables.get(key);
-			table.clearRoutesThrough(server);
+			table.clearRoutesThrough(server, p.serverName);
 			
 		}
+		sentVersions.remove(server);
+		receivedVersions.remove(server);
+		Iterator<String> itr = repairsPending.keySet().iterator();
+		while(itr.hasNext()) {
+			if(itr.next().startsWith(server + "/")) {
+				itr.remove();
+			}
+		}
 		flagUpdatePending();
 	}
 	
-	private synchronized void sendAllTablesToAll() {
-		Enumeration<String> aliases = SSLUtils.getAliases(new File(p.pluginDirectory + EventLink.slash + p.clientKeys), password);
-		
-		while(aliases.hasMoreElements()) {
+	// Delta capable neighbours only get a digest, they ask for the buckets that differ if they are out of step
+
+	private synchronized void sendDigestsToAll() {
+		for(PeerRegistry.Peer peer : p.peerRegistry.getPeers()) {
 			
-			String current = aliases.nextElement();
-			String currentServerName = (current.split(";"))[0];
+			String currentServerName = peer.name;
 			
-			if(current.contains(";") && p.connectionManager != null && p.connectionManager.isConnected(currentServerName)) {
-				sendAllTablesTo(currentServerName);
+			if(peer.hasAddress() && p.connectionManager != null && p.connectionManager.isConnected(currentServerName)) {
+				if(!p.connectionManager.supportsRoutingDeltas(currentServerName)) {
+					sendAllTables(currentServerName);
+					continue;
+				}
+				for(RoutingTable table : routingTables.values()) {
+					sendTable(currentServerName, table, false);
+					outgoing.add(new Outgoing(currentServerName, table.getDigest(), null));
+				}
 			}	
 		}
 	}
 	
 	private synchronized void sendTableToAll(RoutingTable table) {
 		
-		Enumeration<String> aliases = SSLUtils.getAliases(new File(p.pluginDirectory + EventLink.slash + p.clientKeys), password);
-		
-		while(aliases.hasMoreElements()) {
+		for(PeerRegistry.Peer peer : p.peerRegistry.getPeers()) {
 			
-			String current = aliases.nextElement();
-			String currentServerName = (current.split(";"))[0];
+			String currentServerName = peer.name;
 			
-			if(current.contains(";") && p.connectionManager != null && p.connectionManager.isConnected(currentServerName)) {
-				sendTable(currentServerName, table);
+			if(peer.hasAddress() && p.connectionManager != null && p.connectionManager.isConnected(currentServerName)) {
+				sendTable(currentServerName, table, false);
 			}	
 		}
 	}
 	
-	private synchronized void sendTable(String target, RoutingTable table) {
+	// Peers without routing deltas always get the whole table
+	// Otherwise just the changes since the version last sent, unless full is set
+	
+	private synchronized void sendTable(String target, RoutingTable table, boolean full) {
+		
+		if(!p.connectionManager.supportsRoutingDeltas(target)) {
+			outgoing.add(new Outgoing(target, table, null));
+			return;
+		}
 		
-		p.connectionManager.sendObject(target, table);
+		Long sent = getVersions(sentVersions, target).get(table.getTableName());
 		
+		RoutingUpdate update = (full || sent == null) ? table.getFullUpdate() : table.getUpdate(sent);
+		if(update == null) {
+			return;
+		}
+		
+		queueUpdate(target, update);
+		
+	}
+
+	// The version is recorded as sent straight away, so the next delta follows on from it
+	// If the send fails it is removed again and the next send is a full update
+
+	private synchronized void queueUpdate(String target, RoutingUpdate update) {
+		getVersions(sentVersions, target).put(update.tableName, update.toVersion);
+		outgoing.add(new Outgoing(target, update, update));
+	}
+
+	private synchronized void sendFailed(String target, RoutingUpdate update) {
+		HashMap<String,Long> versions = sentVersions.get(target);
+		if(versions == null) {
+			return;
+		}
+		Long sent = versions.get(update.tableName);
+		if(sent != null && sent.longValue() == update.toVersion) {
+			versions.remove(update.tableName);
+		}
+	}
+
+	// Sends the queued packets in order, one thread at a time
+	// Must be called without holding the monitor
+
+	private void flushSends() {
+		while(!outgoing.isEmpty() && flushing.compareAndSet(false, true)) {
+			try {
+				Outgoing next;
+				while((next = outgoing.poll()) != null) {
+					if(!p.connectionManager.sendObject(next.target, next.payload) && next.update != null) {
+						sendFailed(next.target, next.update);
+					}
+				}
+			} finally {
+				flushing.set(false);
+			}
+		}
 	}
 	
-	public synchronized void sendAllTablesTo(String target) {
+	private synchronized void sendAllTables(String target) {
 		for(String key : routingTables.keySet()) {
-			sendTable(target, routingTables.get(key));
+			sendTable(target, routingTables.get(key), true);
+		}
+	}
+	
+	// Used for new connections, so the peer starts from the full tables
+	
+	public void sendAllTablesTo(String target) {
+		synchronized(this) {
+			sentVersions.remove(target);
+			sendAllTables(target);
 		}
+		flushSends();
 	}
 	
 	private void flagUpdatePending() {
@@ -290,27 +507,62 @@ public class RoutingTableManager {
 		}
 	}
 	
+	private static class Outgoing {
+
+		final String target;
+		final Object payload;
+		// Set if the version sent to the target has to be rolled back on failure
+		final RoutingUpdate update;
+
+		Outgoing(String target, Object payload, RoutingUpdate update) {
+			this.target = target;
+			this.payload = payload;
+			this.update = update;
+		}
+
+	}
+
+	private static class UpdateSchedule {
+		
+		long firstChange = -1;
+		long lastChange = -1;
+		long lastSent = -1;
+		long version;
+		
+		long getDue(long window, long minInterval, long maxDelay) {
+			long due = Math.min(lastChange + window, firstChange + maxDelay);
+			if(lastSent >= 0) {
+				due = Math.max(due, lastSent + minInterval);
+			}
+			return Math.min(due, firstChange + Math.max(maxDelay, minInterval));
+		}
+		
+		void sent(long now) {
+			firstChange = -1;
+			lastChange = -1;
+			lastSent = now;
+		}
+		
+	}
+	
 	private class RoutingTableUpdater implements Runnable {
 		
 		public void run() {
 		
-			long lastUpdate = -1;
+			long lastUpdate = System.currentTimeMillis();
 			
-			int cnt = 0;
+			long nextDue = -1;
 			
 			boolean localEnd = false;
 			
 			while(!localEnd) {
-				cnt++;
 				
-				if(cnt>=20) {
-					cnt = 0;
-					long currentTime = System.currentTimeMillis();
-
-					if(currentTime > lastUpdate + 60000) {
-						lastUpdate = currentTime;
-						sendAllTablesToAll();
-					}
+				long currentTime = System.currentTimeMillis();
+				
+				if(currentTime > lastUpdate + 60000) {
+					lastUpdate = currentTime;
+					sendDigestsToAll();
+					flushSends();
 				}
 				
 				boolean resend = false;
@@ -320,12 +572,19 @@ public class RoutingTableManager {
 						updatePending = false;
 					}
 				}
-				if(resend) {
-					sendUpdatedTables();
+				if(resend || (nextDue >= 0 && nextDue <= System.currentTimeMillis())) {
+					nextDue = sendUpdatedTables();
+					flushSends();
 				} 
 				synchronized(updateSync) {
 					try {
-						updateSync.wait(1000);
+						long wait = 1000;
+						if(nextDue >= 0) {
+							wait = Math.max(1, Math.min(wait, nextDue - System.currentTimeMillis()));
+						}
+						if(!updatePending) {
+							updateSync.wait(wait);
+						}
 					} catch (InterruptedException e) {
 					}
 				}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+
+// Change to one routing table, sent instead of the whole table to peers that negotiated it
+//
+// A delta holds the entries that changed between two versions of the sender's table, with a null
+// entry for one that was removed. A full update holds every entry in the given digest buckets and
+// replaces all routes learnt from the sender for those buckets. If a delta doesn't start at the
+// version the receiver has, the receiver sends its RoutingDigest and the sender answers with a
+// full update of the buckets that differ.
+
+public class RoutingUpdate implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int typeDelta = 0;
+	static final int typeFull = 1;
+
+	final String tableName;
+	final int type;
+	final long fromVersion;
+	final long toVersion;
+	// Bit mask of RoutingTable digest buckets, only for full updates
+	final int buckets;
+	final String[] entryNames;
+	final RoutingTableEntry[] entries;
+
+	RoutingUpdate(String tableName, int type, long fromVersion, long toVersion, int buckets, String[] entryNames, RoutingTableEntry[] entries) {
+		this.tableName = tableName;
+		this.type = type;
+		this.fromVersion = fromVersion;
+		this.toVersion = toVersion;
+		this.buckets = buckets;
+		this.entryNames = entryNames;
+		this.entries = entries;
+	}
+
+	public String toString() {
+		String typeName = type == typeDelta ? "delta" : ("full (buckets " + Integer.toHexString(buckets) + ")");
+		return "Routing update " + typeName + " for " + tableName + " " + fromVersion + "->" + toVersion + ", " + entryNames.length + " entries";
+	}
+
+	void encode(WireBuffer buffer) throws IOException {
+		buffer.writeSymbol(tableName);
+		buffer.writeByte(type);
+		buffer.writeVarLong(fromVersion);
+		buffer.writeVarLong(toVersion);
+		buffer.writeVarInt(buckets);
+		buffer.writeVarInt(entryNames.length);
+		for(int cnt = 0; cnt < entryNames.length; cnt++) {
+			buffer.writeString(entryNames[cnt]);
+			RoutingTableEntry entry = entries[cnt];
+			if(entry == null) {
+				buffer.writeByte(0);
+			} else {
+				buffer.writeByte(1);
+				buffer.writeSymbol(entry.getNextServer());
+				buffer.writeSymbol(entry.getLocation());
+				buffer.writeVarInt(entry.getHops());
+			}
+		}
+	}
+
+	static RoutingUpdate decode(WireBuffer buffer) throws IOException {
+		String tableName = buffer.readSymbol();
+		int type = buffer.readByte();
+		if(type > typeFull) {
+			throw new StreamCorruptedException("Unknown routing update type: " + type);
+		}
+		long fromVersion = buffer.readVarLong();
+		long toVersion = buffer.readVarLong();
+		int buckets = buffer.readVarInt();
+		int size = buffer.readVarInt();
+		if(size < 0 || size > buffer.remaining()) {
+			throw new StreamCorruptedException("Bad routing update size: " + size);
+		}
+		String[] entryNames = new String[size];
+		RoutingTableEntry[] entries = new RoutingTableEntry[size];
+		for(int cnt = 0; cnt < size; cnt++) {
+			entryNames[cnt] = buffer.readString();
+			if(buffer.readByte() != 0) {
+				RoutingTableEntry entry = new RoutingTableEntry();
+				entry.setNextServer(buffer.readSymbol());
+				entry.setLocation(buffer.readSymbol());
+				entry.setHops(buffer.readVarInt());
+				entries[cnt] = entry;
+			}
+		}
+		return new RoutingUpdate(tableName, type, fromVersion, toVersion, buckets, entryNames, entries);
+	}
+
+}
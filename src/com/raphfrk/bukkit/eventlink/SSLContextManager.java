@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.File;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+// One SSL context per node, shared by the server and every outgoing dial
+//
+// The server keystore is only read once and the trust store is reloaded in place. Since the
+// context is shared, the client session cache outlives each connection and a reconnect to a
+// known peer resumes its last session rather than doing a full handshake. Cached sessions
+// are dropped whenever the trust store is reloaded, so a removed server can't resume.
+//
+// The protocols and cipher suites from the config are applied to every socket and engine,
+// in the config's order. Entries the JVM doesn't support are skipped, and the JVM defaults
+// are used if none are left.
+
+public class SSLContextManager {
+
+	private final File trustFile;
+	private final String password;
+
+	private final KeyManager[] keyManagers;
+	private final ReloadableTrustManager trustManager;
+	private final SSLContext sslContext;
+	private final SSLParameters parameters;
+
+	SSLContextManager(File serverFile, File trustFile, String password, String[] protocols, String[] cipherSuites) {
+
+		this.trustFile = trustFile;
+		this.password = password;
+
+		keyManagers = SSLUtils.getKeyManagers(serverFile, password);
+		trustManager = new ReloadableTrustManager(trustFile, password);
+		sslContext = SSLUtils.getSSLContext(keyManagers, trustManager);
+		parameters = sslContext == null ? null : getParameters(sslContext, protocols, cipherSuites);
+
+	}
+
+	private static SSLParameters getParameters(SSLContext sslContext, String[] protocols, String[] cipherSuites) {
+
+		SSLParameters supported = sslContext.getSupportedSSLParameters();
+		SSLParameters parameters = sslContext.getDefaultSSLParameters();
+
+		String[] enabledProtocols = filter(protocols, supported.getProtocols());
+		if(enabledProtocols.length > 0) {
+			parameters.setProtocols(enabledProtocols);
+		} else if(protocols.length > 0) {
+			EventLink.logger.log("None of the configured TLS protocols are supported, using the defaults");
+		}
+
+		String[] enabledSuites = filter(cipherSuites, supported.getCipherSuites());
+		if(enabledSuites.length > 0) {
+			parameters.setCipherSuites(enabledSuites);
+			parameters.setUseCipherSuitesOrder(true);
+		} else if(cipherSuites.length > 0) {
+			EventLink.logger.log("None of the configured cipher suites are supported, using the defaults");
+		}
+
+		return parameters;
+
+	}
+
+	private static String[] filter(String[] wanted, String[] supported) {
+		List<String> supportedList = Arrays.asList(supported);
+		List<String> filtered = new ArrayList<String>();
+		for(String current : wanted) {
+			if(supportedList.contains(current)) {
+				filtered.add(current);
+			} else {
+				EventLink.logger.log(current + " is not supported by this JVM, skipping");
+			}
+		}
+		return filtered.toArray(new String[0]);
+	}
+
+	static String[] parseList(String list) {
+		List<String> entries = new ArrayList<String>();
+		for(String current : list.split(",")) {
+			current = current.trim();
+			if(current.length() > 0) {
+				entries.add(current);
+			}
+		}
+		return entries.toArray(new String[0]);
+	}
+
+	// null if the keys couldn't be loaded
+
+	SSLContext getContext() {
+		return sslContext;
+	}
+
+	// Applied with setSSLParameters, which copies them
+
+	SSLParameters getParameters() {
+		return parameters;
+	}
+
+	KeyManager[] getKeyManagers() {
+		return keyManagers;
+	}
+
+	ReloadableTrustManager getTrustManager() {
+		return trustManager;
+	}
+
+	// A resumed session skips the certificate checks, so the peer is checked against the current trust store
+
+	boolean isTrusted(SSLSession session) {
+		try {
+			Certificate[] certs = session.getPeerCertificates();
+			X509Certificate[] chain = new X509Certificate[certs.length];
+			for(int cnt = 0; cnt < certs.length; cnt++) {
+				if(!(certs[cnt] instanceof X509Certificate)) {
+					return false;
+				}
+				chain[cnt] = (X509Certificate)certs[cnt];
+			}
+			if(chain.length == 0) {
+				return false;
+			}
+			trustManager.checkClientTrusted(chain, chain[0].getPublicKey().getAlgorithm());
+			return true;
+		} catch (SSLPeerUnverifiedException e) {
+			return false;
+		} catch (CertificateException e) {
+			return false;
+		}
+	}
+
+	void reload() {
+		trustManager.reloadTrustStore(trustFile, password);
+		if(sslContext != null) {
+			invalidateSessions(sslContext.getClientSessionContext());
+			invalidateSessions(sslContext.getServerSessionContext());
+		}
+	}
+
+	private static void invalidateSessions(SSLSessionContext sessionContext) {
+		if(sessionContext == null) {
+			return;
+		}
+		Enumeration<byte[]> ids = sessionContext.getIds();
+		while(ids.hasMoreElements()) {
+			SSLSession session = sessionContext.getSession(ids.nextElement());
+			if(session != null) {
+				session.invalidate();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+// Blocking streams over an SSLEngine and a blocking SocketChannel
+//
+// Links on the NIO transport use these for the TLS handshake and the name and wire format
+// exchange, so that part of the protocol is shared with SSLSocket links. Binary links then
+// move to a selector thread, taking the engine and any bytes already read with them.
+// Legacy links keep using the streams, since object streams can only be read blocking.
+//
+// Raw reads go through the channel's socket adaptor, so socket timeouts work as normal
+
+public class SSLEngineStreams {
+
+	private final SocketChannel channel;
+	private final Socket socket;
+	private final SSLEngine engine;
+
+	private final InputStream rawIn;
+	private final OutputStream rawOut;
+
+	// netIn and appIn are kept flipped, position to limit is the unread data
+	private ByteBuffer netIn;
+	private ByteBuffer appIn;
+	private ByteBuffer netOut;
+
+	private final Object readLock = new Object();
+	private final Object writeLock = new Object();
+
+	private boolean inputClosed = false;
+
+	private final InputStream inputStream = new EngineInputStream();
+	private final OutputStream outputStream = new EngineOutputStream();
+
+	SSLEngineStreams(SocketChannel channel, SSLEngine engine) throws IOException {
+		this.channel = channel;
+		this.socket = channel.socket();
+		this.engine = engine;
+		this.rawIn = socket.getInputStream();
+		this.rawOut = socket.getOutputStream();
+		SSLSession session = engine.getSession();
+		netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		netIn.flip();
+		appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		appIn.flip();
+		netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	Socket getSocket() {
+		return socket;
+	}
+
+	SSLEngine getEngine() {
+		return engine;
+	}
+
+	SSLSession getSession() {
+		return engine.getSession();
+	}
+
+	InputStream getInputStream() {
+		return inputStream;
+	}
+
+	OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	// Encrypted bytes received but not yet unwrapped, flipped
+	ByteBuffer getNetIn() {
+		return netIn;
+	}
+
+	// Decrypted bytes not yet read through the input stream, flipped
+	ByteBuffer getAppIn() {
+		return appIn;
+	}
+
+	void handshake() throws IOException {
+		engine.beginHandshake();
+		while(true) {
+			switch(engine.getHandshakeStatus()) {
+			case NEED_TASK:
+				runTasks();
+				break;
+			case NEED_WRAP:
+				synchronized(writeLock) {
+					wrap(ByteBuffer.allocate(0));
+				}
+				break;
+			case NEED_UNWRAP:
+				synchronized(readLock) {
+					if(!unwrap() && readNet() < 0) {
+						throw new EOFException("Connection closed during TLS handshake");
+					}
+				}
+				break;
+			case FINISHED:
+			case NOT_HANDSHAKING:
+				return;
+			default:
+				// Data already buffered needs unwrapping again (DTLS only)
+				synchronized(readLock) {
+					unwrap();
+				}
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	// Returns false if more data is needed from the network
+
+	private boolean unwrap() throws IOException {
+		appIn.compact();
+		SSLEngineResult result;
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			appIn.flip();
+		}
+		switch(result.getStatus()) {
+		case BUFFER_UNDERFLOW:
+			if(netIn.limit() == netIn.capacity() && netIn.position() == 0) {
+				netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+			}
+			return false;
+		case BUFFER_OVERFLOW:
+			appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+			return true;
+		case CLOSED:
+			inputClosed = true;
+			return true;
+		default:
+			if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				runTasks();
+			}
+			return true;
+		}
+	}
+
+	private int readNet() throws IOException {
+		netIn.compact();
+		try {
+			int read = rawIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+			if(read > 0) {
+				netIn.position(netIn.position() + read);
+			}
+			return read;
+		} finally {
+			netIn.flip();
+		}
+	}
+
+	private void wrap(ByteBuffer src) throws IOException {
+		while(true) {
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(src, netOut);
+			if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = ByteBuffer.allocate(netOut.capacity() + engine.getSession().getPacketBufferSize());
+				continue;
+			} else if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new SSLException("TLS connection closed");
+			}
+			if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				runTasks();
+			}
+			netOut.flip();
+			rawOut.write(netOut.array(), netOut.arrayOffset(), netOut.limit());
+			if(!src.hasRemaining()) {
+				break;
+			}
+		}
+		rawOut.flush();
+	}
+
+	// Grows a flipped buffer, keeping its contents
+
+	static ByteBuffer grow(ByteBuffer buffer, int extra) {
+		ByteBuffer newBuffer = ByteBuffer.allocate(buffer.capacity() + extra);
+		newBuffer.put(buffer);
+		newBuffer.flip();
+		return newBuffer;
+	}
+
+	private class EngineInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			if(length == 0) {
+				return 0;
+			}
+			synchronized(readLock) {
+				while(!appIn.hasRemaining()) {
+					if(inputClosed) {
+						return -1;
+					}
+					if((!netIn.hasRemaining() || !unwrap()) && readNet() < 0) {
+						return -1;
+					}
+					if(engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+						// Post handshake message, such as a key update
+						synchronized(writeLock) {
+							wrap(ByteBuffer.allocate(0));
+						}
+					}
+				}
+				int count = Math.min(length, appIn.remaining());
+				appIn.get(b, offset, count);
+				return count;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized(readLock) {
+				return appIn.remaining();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+
+	}
+
+	private class EngineOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) throws IOException {
+			synchronized(writeLock) {
+				wrap(ByteBuffer.wrap(b, offset, length));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+
+	}
+
+}
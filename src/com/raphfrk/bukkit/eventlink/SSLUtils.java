@@ -28,9 +28,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
 import java.security.InvalidKeyException;
 import java.security.KeyManagementException;
 import java.security.KeyPair;
@@ -55,6 +58,9 @@ import java.util.Iterator;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.security.auth.x500.X500Principal;
@@ -541,11 +547,11 @@ public class SSLUtils {
 
 	}
 
-	static SSLSocket getSSLSocket(String hostname, int portnum, KeyManager[] keyManagers, TrustManager trustManager) {
+	static SSLContext getSSLContext(KeyManager[] keyManagers, TrustManager trustManager) {
 
 		SSLContext sc;
 		try {
-			sc = SSLContext.getInstance("SSL");
+			sc = SSLContext.getInstance("TLS");
 		} catch (NoSuchAlgorithmException e) {
 			return null;
 		}
@@ -559,8 +565,27 @@ public class SSLUtils {
 			return null;
 		}
 
+		return sc;
+
+	}
+
+	static SSLSocket getSSLSocket(String hostname, int portnum, KeyManager[] keyManagers, TrustManager trustManager) {
+		return getSSLSocket(hostname, portnum, getSSLContext(keyManagers, trustManager), null);
+	}
+
+	// parameters may be null, the context's defaults are used in that case
+
+	static SSLSocket getSSLSocket(String hostname, int portnum, SSLContext sc, SSLParameters parameters) {
+
+		if(sc == null) {
+			return null;
+		}
+
 		try {
 			SSLSocket socket = (SSLSocket)sc.getSocketFactory().createSocket(hostname, portnum);
+			if(parameters != null) {
+				socket.setSSLParameters(parameters);
+			}
 
 			return socket;
 		} catch (UnknownHostException e) {
@@ -572,22 +597,9 @@ public class SSLUtils {
 
 	}
 
-	static ServerSocket getSSLServerSocket (EventLink p, int portnum, KeyManager[] keyManagers, TrustManager trustManager) throws BindException {
-
-		SSLContext sc;
+	static ServerSocket getSSLServerSocket (EventLink p, int portnum, SSLContext sc, SSLParameters parameters) throws BindException {
 
-		try {
-			sc = SSLContext.getInstance("SSL");
-		} catch (NoSuchAlgorithmException e) {
-			return null;
-		}
-
-		try {
-			sc.init(
-					keyManagers,
-					new TrustManager[] {trustManager},
-					new SecureRandom());
-		} catch (KeyManagementException e) {
+		if(sc == null) {
 			p.log("Keymanager exception");
 			return null;
 		}
@@ -598,6 +610,9 @@ public class SSLUtils {
 
 		try {
 			socket = sc.getServerSocketFactory().createServerSocket(portnum);
+			if(parameters != null) {
+				((SSLServerSocket)socket).setSSLParameters(parameters);
+			}
 			success = true;
 		} catch (UnknownHostException e) {
 			p.log("Unknown hostname starting server");
@@ -623,6 +638,35 @@ public class SSLUtils {
 
 	}
 
+	// Connects a blocking channel for the NIO transport, the TLS handshake is left to the caller
+
+	static SSLEngineStreams getSSLEngineStreams(String hostname, int portnum, SSLContext sc, SSLParameters parameters) {
+
+		if(sc == null) {
+			return null;
+		}
+
+		SocketChannel channel = null;
+
+		try {
+			channel = SocketChannel.open(new InetSocketAddress(hostname, portnum));
+			SSLEngine engine = sc.createSSLEngine(hostname, portnum);
+			if(parameters != null) {
+				engine.setSSLParameters(parameters);
+			}
+			engine.setUseClientMode(true);
+			return new SSLEngineStreams(channel, engine);
+		} catch (UnresolvedAddressException e) {
+			return null;
+		} catch (IOException e) {
+			if(channel != null) {
+				closeSocket(channel.socket());
+			}
+			return null;
+		}
+
+	}
+
 	static public String getHostname(String hostname) {
 		String[] split = hostname.split(":");
 
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+// Each priority is a separate lane in a connection's send queue
+// The writer takes from the lanes in proportion to their weights, so lower lanes are
+// slowed down but never starved. Large frames outside the HIGH lane are sent in fragments
+// so a big routing table or event can't hold up chat for its whole length.
+
+public enum SendPriority {
+
+	HIGH(8),
+	NORMAL(4),
+	LOW(1);
+
+	final int defaultWeight;
+
+	SendPriority(int defaultWeight) {
+		this.defaultWeight = defaultWeight;
+	}
+
+	// Parses a comma separated list of weights, missing or bad entries use the defaults
+
+	static int[] parseWeights(String weights) {
+		SendPriority[] priorities = values();
+		int[] parsed = new int[priorities.length];
+		String[] split = weights == null ? new String[0] : weights.split(",");
+		for(int cnt = 0; cnt < parsed.length; cnt++) {
+			parsed[cnt] = priorities[cnt].defaultWeight;
+			if(cnt < split.length) {
+				try {
+					parsed[cnt] = Math.max(1, Integer.parseInt(split[cnt].trim()));
+				} catch (NumberFormatException nfe) {
+				}
+			}
+		}
+		return parsed;
+	}
+
+}
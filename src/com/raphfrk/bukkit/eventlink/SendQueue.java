@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded lock free ring buffer used as the send queue of a connection
+//
+// Any number of threads may offer packets, the connection's writer thread takes them.
+// Each slot has a sequence number, a producer claims a slot by moving the tail with a CAS
+// and publishes it by advancing the slot sequence. Taking uses the same scheme on the head,
+// which lets producers remove the oldest packet themselves when using DROP_OLDEST.
+
+public class SendQueue<T> {
+
+	enum OverflowPolicy {
+		BLOCK,
+		DROP_OLDEST,
+		DROP_NEWEST,
+		REJECT;
+
+		static OverflowPolicy parse(String name, OverflowPolicy def) {
+			try {
+				return valueOf(name.trim().toUpperCase().replace('-', '_'));
+			} catch (IllegalArgumentException e) {
+				return def;
+			}
+		}
+	}
+
+	private final int mask;
+	private final AtomicReferenceArray<T> slots;
+	private final AtomicLongArray sequence;
+
+	private final AtomicLong head = new AtomicLong(0);
+	private final AtomicLong tail = new AtomicLong(0);
+
+	private final OverflowPolicy policy;
+	private final long blockNanos;
+
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	private volatile Thread consumer = null;
+	private volatile boolean consumerWaiting = false;
+
+	// Producers parked by BLOCK, woken when a slot is freed
+	private final ConcurrentLinkedQueue<Thread> producers = new ConcurrentLinkedQueue<Thread>();
+	private final AtomicInteger producersWaiting = new AtomicInteger(0);
+
+	// Threads that must never wait on a full queue, such as the ones reading from peers
+	// BLOCK is treated as REJECT on these
+	private static final ThreadLocal<Boolean> nonBlocking = new ThreadLocal<Boolean>();
+
+	static void setNonBlocking() {
+		nonBlocking.set(Boolean.TRUE);
+	}
+
+	static boolean isNonBlocking() {
+		return nonBlocking.get() != null;
+	}
+
+	SendQueue(int capacity, OverflowPolicy policy, long blockMillis) {
+		int size = 2;
+		while(size < capacity && size < (1 << 30)) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<T>(size);
+		this.sequence = new AtomicLongArray(size);
+		for(int cnt = 0; cnt < size; cnt++) {
+			sequence.set(cnt, cnt);
+		}
+		this.policy = policy;
+		this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	int size() {
+		long size = tail.get() - head.get();
+		return (int)Math.max(0, Math.min(size, capacity()));
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	long getDropped() {
+		return dropped.get();
+	}
+
+	// Applies the overflow policy if the queue is full
+	// The connection is checked while blocking, so producers do not wait on a dead link
+	// BLOCK only waits if mayBlock is set, otherwise it rejects
+
+	SendResult offer(T element, Connection connection, boolean mayBlock) {
+		if(tryOffer(element)) {
+			wakeConsumer();
+			return SendResult.QUEUED;
+		}
+		switch(policy) {
+		case DROP_NEWEST:
+			dropped.incrementAndGet();
+			return SendResult.DROPPED;
+		case REJECT:
+			return SendResult.REJECTED;
+		case DROP_OLDEST:
+			while(!tryOffer(element)) {
+				if(tryPoll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+			wakeConsumer();
+			return SendResult.QUEUED_DROPPED_OLDEST;
+		default:
+			if(!mayBlock || blockNanos == 0) {
+				return SendResult.REJECTED;
+			}
+			long deadline = System.nanoTime() + blockNanos;
+			Thread current = Thread.currentThread();
+			// Registered before trying again, so a slot freed in between still unparks this thread
+			producers.add(current);
+			producersWaiting.incrementAndGet();
+			try {
+				while(!tryOffer(element)) {
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0 || !connection.getAlive() || current.isInterrupted()) {
+						return SendResult.REJECTED;
+					}
+					wakeConsumer();
+					LockSupport.parkNanos(this, remaining);
+				}
+			} finally {
+				producersWaiting.decrementAndGet();
+				producers.remove(current);
+			}
+			wakeConsumer();
+			return SendResult.QUEUED;
+		}
+	}
+
+	boolean tryOffer(T element) {
+		while(true) {
+			long pos = tail.get();
+			int index = (int)pos & mask;
+			long diff = sequence.get(index) - pos;
+			if(diff == 0) {
+				if(tail.compareAndSet(pos, pos + 1)) {
+					slots.lazySet(index, element);
+					sequence.set(index, pos + 1);
+					return true;
+				}
+			} else if(diff < 0) {
+				return false;
+			}
+		}
+	}
+
+	T tryPoll() {
+		while(true) {
+			long pos = head.get();
+			int index = (int)pos & mask;
+			long diff = sequence.get(index) - (pos + 1);
+			if(diff == 0) {
+				if(head.compareAndSet(pos, pos + 1)) {
+					T element = slots.get(index);
+					slots.lazySet(index, null);
+					sequence.set(index, pos + mask + 1);
+					if(producersWaiting.get() > 0) {
+						wakeProducers();
+					}
+					return element;
+				}
+			} else if(diff < 0) {
+				return null;
+			}
+		}
+	}
+
+	// Only called by the consumer thread, waits up to waitMillis if the queue is empty
+	// Returns null on timeout or if the thread is interrupted
+
+	T poll(long waitMillis) {
+		T element = tryPoll();
+		if(element != null || waitMillis <= 0) {
+			return element;
+		}
+		consumer = Thread.currentThread();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+		try {
+			while(true) {
+				consumerWaiting = true;
+				element = tryPoll();
+				if(element != null) {
+					return element;
+				}
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0 || Thread.currentThread().isInterrupted()) {
+					return null;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+		} finally {
+			consumerWaiting = false;
+		}
+	}
+
+	// Lets LaneQueue wait on several queues at once
+
+	void setWaiting(boolean waiting) {
+		if(waiting) {
+			consumer = Thread.currentThread();
+		}
+		consumerWaiting = waiting;
+	}
+
+	// Also used when the link closes, so blocked producers see it straight away
+
+	void wakeProducers() {
+		for(Thread waiting : producers) {
+			LockSupport.unpark(waiting);
+		}
+	}
+
+	private void wakeConsumer() {
+		if(consumerWaiting) {
+			Thread waiting = consumer;
+			if(waiting != null) {
+				LockSupport.unpark(waiting);
+			}
+		}
+	}
+
+}
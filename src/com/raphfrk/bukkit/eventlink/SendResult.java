@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+// Outcome of handing a packet to the connections, ordered from best to worst
+
+public enum SendResult {
+
+	QUEUED,
+	QUEUED_DROPPED_OLDEST,
+	DROPPED,
+	REJECTED,
+	NO_ROUTE;
+
+	public boolean isQueued() {
+		return this == QUEUED || this == QUEUED_DROPPED_OLDEST;
+	}
+
+	// Used when a packet is split between next hops
+	// Missing routes are only reported if nothing could be sent
+
+	static SendResult combine(SendResult a, SendResult b) {
+		if(a == NO_ROUTE) {
+			return b;
+		} else if(b == NO_ROUTE) {
+			return a;
+		}
+		return a.ordinal() >= b.ordinal() ? a : b;
+	}
+
+}
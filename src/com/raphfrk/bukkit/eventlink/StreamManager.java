@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps track of the streams opened to and from this server
+//
+// Stream packets from one source are handled in order by the same inbound thread, so
+// chunks arrive in sequence unless the route changes mid transfer. The reader
+// aborts the stream if that happens.
+
+public class StreamManager {
+
+	private final EventLink p;
+	private final ConnectionManager connectionManager;
+
+	private final ConcurrentHashMap<Long,EventLinkOutputStream> outgoing = new ConcurrentHashMap<Long,EventLinkOutputStream>();
+	// Keyed by source server and stream id
+	private final ConcurrentHashMap<String,EventLinkInputStream> incoming = new ConcurrentHashMap<String,EventLinkInputStream>();
+
+	private final StreamReaper reaper;
+
+	StreamManager(EventLink p, ConnectionManager connectionManager) {
+		this.p = p;
+		this.connectionManager = connectionManager;
+		reaper = new StreamReaper();
+		reaper.setName("Stream reaper");
+		reaper.start();
+	}
+
+	EventLinkOutputStream open(String target, String channel) throws IOException {
+		long streamId;
+		synchronized(EventLinkPacket.random) {
+			streamId = EventLinkPacket.random.nextLong();
+		}
+		EventLinkOutputStream out = new EventLinkOutputStream(this, target, streamId, p.streamChunkSize, p.streamWindow, p.streamTimeout);
+		outgoing.put(streamId, out);
+		if(!send(target, new StreamPacket(streamId, StreamPacket.typeOpen, 0, channel, null), SendPriority.LOW)) {
+			outgoing.remove(streamId);
+			throw new IOException("Unable to open stream to " + target);
+		}
+		return out;
+	}
+
+	boolean send(String target, StreamPacket packet, SendPriority priority) {
+		return connectionManager.sendObject(target, packet, priority);
+	}
+
+	// Called by the inbound threads
+
+	void receive(EventLinkPacket eventLinkPacket, StreamPacket packet) {
+
+		String source = eventLinkPacket.sourceServer;
+		String key = source + "/" + packet.streamId;
+
+		switch(packet.type) {
+		case StreamPacket.typeOpen:
+			EventLinkInputStream in = new EventLinkInputStream(this, source, packet.streamId, p.streamWindow, p.streamTimeout);
+			if(incoming.putIfAbsent(key, in) == null) {
+				connectionManager.processEvent(eventLinkPacket, new EventLinkStreamEvent(source, packet.channel, in));
+			}
+			break;
+		case StreamPacket.typeData:
+		case StreamPacket.typeClose:
+			EventLinkInputStream current = incoming.get(key);
+			if(current == null || !current.offer(packet)) {
+				if(current != null) {
+					p.log("Stream from " + source + " out of sequence, aborting");
+					current.remoteAbort();
+					incoming.remove(key, current);
+				}
+				send(source, new StreamPacket(packet.streamId, StreamPacket.typeAbort, 0, null, null), SendPriority.HIGH);
+			}
+			break;
+		case StreamPacket.typeAck:
+			EventLinkOutputStream out = outgoing.get(packet.streamId);
+			if(out != null && out.target.equals(source)) {
+				out.ack(packet.sequence);
+			}
+			break;
+		case StreamPacket.typeAbort:
+			EventLinkOutputStream aborted = outgoing.get(packet.streamId);
+			if(aborted != null && aborted.target.equals(source)) {
+				outgoing.remove(packet.streamId, aborted);
+				aborted.remoteAbort();
+			}
+			EventLinkInputStream abortedIn = incoming.remove(key);
+			if(abortedIn != null) {
+				abortedIn.remoteAbort();
+			}
+			break;
+		}
+
+	}
+
+	void ack(EventLinkInputStream in, int consumed) {
+		send(in.sourceServer, new StreamPacket(in.streamId, StreamPacket.typeAck, consumed, null, null), SendPriority.HIGH);
+	}
+
+	void abort(EventLinkOutputStream out) {
+		outgoing.remove(out.streamId, out);
+		send(out.target, new StreamPacket(out.streamId, StreamPacket.typeAbort, 0, null, null), SendPriority.HIGH);
+	}
+
+	void abort(EventLinkInputStream in) {
+		incoming.remove(in.sourceServer + "/" + in.streamId, in);
+		send(in.sourceServer, new StreamPacket(in.streamId, StreamPacket.typeAbort, 0, null, null), SendPriority.HIGH);
+	}
+
+	void remove(EventLinkOutputStream out) {
+		outgoing.remove(out.streamId, out);
+	}
+
+	void remove(EventLinkInputStream in) {
+		incoming.remove(in.sourceServer + "/" + in.streamId, in);
+	}
+
+	// Incoming streams that nobody has read for the stream timeout are aborted, otherwise
+	// a short stream that the sender finished would keep its chunks forever
+
+	void reapIdle() {
+		long now = System.currentTimeMillis();
+		for(EventLinkInputStream in : incoming.values()) {
+			if(in.isIdle(now)) {
+				p.log("Stream from " + in.sourceServer + " not read for " + p.streamTimeout + "ms, aborting");
+				in.expire();
+				abort(in);
+			}
+		}
+	}
+
+	private class StreamReaper extends KillableThread {
+
+		public void run() {
+			long interval = Math.max(1000, p.streamTimeout / 4);
+			while(!killed()) {
+				reapIdle();
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					kill();
+				}
+			}
+		}
+
+	}
+
+	void stop() {
+		reaper.interrupt();
+		for(EventLinkOutputStream out : outgoing.values()) {
+			out.remoteAbort();
+		}
+		outgoing.clear();
+		for(EventLinkInputStream in : incoming.values()) {
+			in.remoteAbort();
+		}
+		incoming.clear();
+	}
+
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.Serializable;
+
+// Payload used by EventLinkOutputStream and EventLinkInputStream
+// Data chunks are numbered from 0, acks carry the number of chunks the reader has used up
+
+public class StreamPacket implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int typeOpen = 0;
+	static final int typeData = 1;
+	static final int typeClose = 2;
+	static final int typeAbort = 3;
+	static final int typeAck = 4;
+
+	final long streamId;
+	final int type;
+	final int sequence;
+	// Only set on open
+	final String channel;
+	// Only set on data
+	final byte[] data;
+
+	StreamPacket(long streamId, int type, int sequence, String channel, byte[] data) {
+		this.streamId = streamId;
+		this.type = type;
+		this.sequence = sequence;
+		this.channel = channel;
+		this.data = data;
+	}
+
+	public String toString() {
+		return "stream " + Long.toHexString(streamId) + " type " + type + " seq " + sequence;
+	}
+
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// String table kept in step at both ends of a link, one per direction
+//
+// The sending side picks the slot for each new string (evicting the least recently used one
+// when full) and sends the slot number along with the value. The receiving side just stores
+// what it is told, so both ends always agree without any extra messages.
+//
+// code 0 = null, 1 = literal not cached, 2 + 2 * slot = define slot, 3 + 2 * slot = use slot
+
+public class StringDictionary {
+
+	static final int maxCachedLength = 64;
+
+	private final int capacity;
+
+	// Sending side
+	private final LinkedHashMap<String,Integer> slots;
+	private int nextSlot = 0;
+
+	// Receiving side
+	private final String[] values;
+
+	StringDictionary(int capacity, boolean sending) {
+		this.capacity = capacity;
+		if(sending) {
+			slots = new LinkedHashMap<String,Integer>(16, 0.75f, true);
+			values = null;
+		} else {
+			slots = null;
+			values = new String[capacity];
+		}
+	}
+
+	void write(WireBuffer buffer, String s) throws IOException {
+
+		if(s == null) {
+			buffer.writeVarInt(0);
+			return;
+		}
+
+		if(capacity == 0 || s.length() > maxCachedLength) {
+			buffer.writeVarInt(1);
+			buffer.writeString(s);
+			return;
+		}
+
+		Integer slot = slots.get(s);
+		if(slot != null) {
+			buffer.writeVarInt(3 + (slot << 1));
+			return;
+		}
+
+		int newSlot;
+		if(nextSlot < capacity) {
+			newSlot = nextSlot++;
+		} else {
+			Iterator<Map.Entry<String,Integer>> itr = slots.entrySet().iterator();
+			newSlot = itr.next().getValue();
+			itr.remove();
+		}
+		slots.put(s, newSlot);
+
+		buffer.writeVarInt(2 + (newSlot << 1));
+		buffer.writeString(s);
+
+	}
+
+	String read(WireBuffer buffer) throws IOException {
+
+		int code = buffer.readVarInt();
+
+		if(code == 0) {
+			return null;
+		} else if(code == 1) {
+			return buffer.readString();
+		}
+
+		int slot = (code - 2) >> 1;
+		if(slot < 0 || slot >= capacity) {
+			throw new StreamCorruptedException("Dictionary slot out of range: " + slot);
+		}
+
+		if((code & 1) == 0) {
+			String s = buffer.readString();
+			values[slot] = s;
+			return s;
+		}
+
+		String s = values[slot];
+		if(s == null) {
+			throw new StreamCorruptedException("Reference to undefined dictionary slot: " + slot);
+		}
+		return s;
+
+	}
+
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.bukkit.command.CommandSender;
+
+// Loopback benchmark of the configured cipher suites, started by /eventlink tlsbench
+//
+// Each suite gets its own listener using this node's key, but neither side checks trust
+// and nothing touches the shared context. Handshake time is the average of full handshakes,
+// the sessions are invalidated so that none are resumed. Throughput is measured by sending
+// bulkBytes over one connection and waiting for the listener to confirm it read them all.
+
+public class TlsBenchmark implements Runnable {
+
+	private static final int handshakes = 20;
+	private static final int bulkBytes = 32 * 1024 * 1024;
+	private static final int chunkSize = 16384;
+
+	private final EventLink p;
+	private final CommandSender commandSender;
+
+	TlsBenchmark(EventLink p, CommandSender commandSender) {
+		this.p = p;
+		this.commandSender = commandSender;
+	}
+
+	void start() {
+		KillableThread.newThread(this, "Event Link TLS benchmark").start();
+	}
+
+	public void run() {
+
+		KeyManager[] keyManagers = p.sslContextManager.getKeyManagers();
+		SSLContext serverContext = SSLUtils.getSSLContext(keyManagers, new TrustingTrustManager());
+		SSLContext clientContext = SSLUtils.getSSLContext(null, new TrustingTrustManager());
+
+		if(keyManagers == null || serverContext == null || clientContext == null || p.sslContextManager.getParameters() == null) {
+			report("Unable to set up TLS for the benchmark");
+			return;
+		}
+
+		String[] protocols = p.sslContextManager.getParameters().getProtocols();
+		String[] suites = p.sslContextManager.getParameters().getCipherSuites();
+
+		report("Benchmarking " + suites.length + " cipher suites on loopback");
+
+		// Unreported pass, so the first suite isn't measured before the JIT has warmed up
+		if(suites.length > 0) {
+			try {
+				benchmark(serverContext, clientContext, protocols, suites[0]);
+			} catch (IOException e) {
+			}
+		}
+
+		for(String suite : suites) {
+			try {
+				report(benchmark(serverContext, clientContext, protocols, suite));
+			} catch (IOException e) {
+				report(suite + ": failed (" + e.getMessage() + ")");
+			}
+		}
+
+		report("TLS benchmark complete");
+
+	}
+
+	private String benchmark(SSLContext serverContext, SSLContext clientContext, String[] protocols, String suite) throws IOException {
+
+		final SSLServerSocket server = (SSLServerSocket)serverContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		try {
+			server.setEnabledProtocols(protocols);
+			server.setEnabledCipherSuites(new String[] {suite});
+
+			Thread listener = KillableThread.newThread(new Runnable() {
+				public void run() {
+					while(!server.isClosed()) {
+						Socket s = null;
+						try {
+							s = server.accept();
+							DataInputStream in = new DataInputStream(s.getInputStream());
+							int length = in.readInt();
+							byte[] buffer = new byte[chunkSize];
+							while(length > 0) {
+								int read = in.read(buffer, 0, Math.min(length, buffer.length));
+								if(read < 0) {
+									break;
+								}
+								length -= read;
+							}
+							OutputStream out = s.getOutputStream();
+							out.write(1);
+							out.flush();
+						} catch (IOException e) {
+						} finally {
+							if(s != null) {
+								SSLUtils.closeSocket(s);
+							}
+						}
+					}
+				}
+			}, "Event Link TLS benchmark listener");
+			listener.start();
+
+			int port = server.getLocalPort();
+
+			long handshakeTime = 0;
+			String protocol = null;
+			for(int cnt = 0; cnt < handshakes; cnt++) {
+				long start = System.nanoTime();
+				SSLSocket s = connect(clientContext, port, protocols, suite);
+				try {
+					s.startHandshake();
+					handshakeTime += System.nanoTime() - start;
+					SSLSession session = s.getSession();
+					protocol = session.getProtocol();
+					session.invalidate();
+					send(s, 0);
+				} finally {
+					SSLUtils.closeSocket(s);
+				}
+			}
+
+			SSLSocket s = connect(clientContext, port, protocols, suite);
+			long bulkTime;
+			try {
+				s.startHandshake();
+				long start = System.nanoTime();
+				send(s, bulkBytes);
+				bulkTime = System.nanoTime() - start;
+				s.getSession().invalidate();
+			} finally {
+				SSLUtils.closeSocket(s);
+			}
+
+			long handshakeMicros = handshakeTime / handshakes / 1000;
+			long megabytesPerSecond = (bulkBytes * 1000000000L / Math.max(1, bulkTime)) >> 20;
+
+			return suite + " (" + protocol + "): handshake " + handshakeMicros + "us, " + megabytesPerSecond + "MB/s";
+
+		} finally {
+			server.close();
+		}
+
+	}
+
+	private static SSLSocket connect(SSLContext clientContext, int port, String[] protocols, String suite) throws IOException {
+		SSLSocket s = (SSLSocket)clientContext.getSocketFactory().createSocket("127.0.0.1", port);
+		s.setEnabledProtocols(protocols);
+		s.setEnabledCipherSuites(new String[] {suite});
+		return s;
+	}
+
+	// Sends length bytes and waits for the listener to confirm it has read them
+
+	private static void send(SSLSocket s, int length) throws IOException {
+		DataOutputStream out = new DataOutputStream(s.getOutputStream());
+		out.writeInt(length);
+		byte[] buffer = new byte[chunkSize];
+		while(length > 0) {
+			int count = Math.min(length, buffer.length);
+			out.write(buffer, 0, count);
+			length -= count;
+		}
+		out.flush();
+		InputStream in = s.getInputStream();
+		if(in.read() < 0) {
+			throw new IOException("Listener closed the connection");
+		}
+	}
+
+	private void report(String message) {
+		p.log(message);
+		MiscUtils.sendAsyncMessage(p, p.server, commandSender, message);
+	}
+
+}
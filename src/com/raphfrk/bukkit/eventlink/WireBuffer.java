@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Growable byte array used to build and parse binary frames
+// Writes append at limit, reads consume from position
+//
+// Symbols are strings collected into a per frame list which is sent in the frame header
+// through the link's StringDictionary, the payload itself only holds the list index
+
+public class WireBuffer {
+
+	private static final int maxStringLength = 65535;
+
+	byte[] data;
+	int position = 0;
+	int limit = 0;
+
+	private ArrayList<String> symbols = null;
+	private HashMap<String,Integer> symbolIndex = null;
+
+	WireBuffer(int capacity) {
+		data = new byte[capacity];
+	}
+
+	WireBuffer(byte[] data, int offset, int length) {
+		this.data = data;
+		this.position = offset;
+		this.limit = offset + length;
+	}
+
+	// Points the buffer at existing bytes without copying them
+
+	void wrap(byte[] data, int offset, int length) {
+		clear();
+		this.data = data;
+		this.position = offset;
+		this.limit = offset + length;
+	}
+
+	void clear() {
+		position = 0;
+		limit = 0;
+		if(symbols != null) {
+			symbols.clear();
+			symbolIndex.clear();
+		}
+	}
+
+	public int remaining() {
+		return limit - position;
+	}
+
+	void ensureCapacity(int extra) {
+		if(limit + extra > data.length) {
+			int newLength = Math.max(data.length << 1, limit + extra);
+			byte[] newData = new byte[newLength];
+			System.arraycopy(data, 0, newData, 0, limit);
+			data = newData;
+		}
+	}
+
+	public void writeByte(int b) {
+		ensureCapacity(1);
+		data[limit++] = (byte)b;
+	}
+
+	public void writeBytes(byte[] b, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(b, offset, data, limit, length);
+		limit += length;
+	}
+
+	public void writeVarInt(int value) {
+		ensureCapacity(5);
+		while((value & ~0x7F) != 0) {
+			data[limit++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[limit++] = (byte)value;
+	}
+
+	public void writeSignedVarInt(int value) {
+		writeVarInt((value << 1) ^ (value >> 31));
+	}
+
+	public void writeVarLong(long value) {
+		ensureCapacity(10);
+		while((value & ~0x7FL) != 0) {
+			data[limit++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[limit++] = (byte)value;
+	}
+
+	public void writeLong(long value) {
+		ensureCapacity(8);
+		for(int shift = 56; shift >= 0; shift -= 8) {
+			data[limit++] = (byte)(value >>> shift);
+		}
+	}
+
+	public void writeString(String s) throws UTFDataFormatException {
+		if(s == null) {
+			writeVarInt(0);
+			return;
+		}
+		final int length = s.length();
+		if(length > maxStringLength) {
+			throw new UTFDataFormatException("String too long for frame: " + length);
+		}
+		// Length is stored +1 so that 0 can mean null
+		int start = limit;
+		writeVarInt(length + 1);
+		boolean ascii = true;
+		ensureCapacity(length);
+		for(int cnt = 0; cnt < length; cnt++) {
+			char c = s.charAt(cnt);
+			if(c >= 0x80) {
+				ascii = false;
+				break;
+			}
+			data[limit++] = (byte)c;
+		}
+		if(!ascii) {
+			// Rare case, rewrite with the full UTF-8 encoding and a byte length
+			limit = start;
+			byte[] utf;
+			try {
+				utf = s.getBytes("UTF-8");
+			} catch (java.io.UnsupportedEncodingException e) {
+				throw new UTFDataFormatException("UTF-8 not supported");
+			}
+			writeVarInt(-(utf.length + 1));
+			writeBytes(utf, 0, utf.length);
+		}
+	}
+
+	public void writeSymbol(String s) {
+		writeVarInt(s == null ? 0 : getSymbolIndex(s) + 1);
+	}
+
+	public String readSymbol() throws IOException {
+		int index = readVarInt() - 1;
+		if(index < 0) {
+			return null;
+		}
+		return getSymbolChecked(index);
+	}
+
+	int getSymbolCount() {
+		return symbols == null ? 0 : symbols.size();
+	}
+
+	String getSymbol(int index) {
+		return symbols.get(index);
+	}
+
+	int getSymbolIndex(String s) {
+		if(symbols == null) {
+			symbols = new ArrayList<String>();
+			symbolIndex = new HashMap<String,Integer>();
+		}
+		Integer index = symbolIndex.get(s);
+		if(index == null) {
+			index = symbols.size();
+			symbols.add(s);
+			symbolIndex.put(s, index);
+		}
+		return index;
+	}
+
+	String getSymbolChecked(int index) throws StreamCorruptedException {
+		if(symbols == null || index < 0 || index >= symbols.size()) {
+			throw new StreamCorruptedException("Symbol index out of range: " + index);
+		}
+		return symbols.get(index);
+	}
+
+	// Used when decoding, symbols arrive in index order
+	void addSymbol(String s) {
+		if(symbols == null) {
+			symbols = new ArrayList<String>();
+			symbolIndex = new HashMap<String,Integer>();
+		}
+		symbols.add(s);
+	}
+
+	public int readByte() throws EOFException {
+		if(position >= limit) {
+			throw new EOFException("Frame underflow");
+		}
+		return data[position++] & 0xFF;
+	}
+
+	public void readBytes(byte[] b, int offset, int length) throws EOFException {
+		if(limit - position < length) {
+			throw new EOFException("Frame underflow");
+		}
+		System.arraycopy(data, position, b, offset, length);
+		position += length;
+	}
+
+	public int readVarInt() throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			int b = readByte();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in frame");
+	}
+
+	public int readSignedVarInt() throws IOException {
+		int raw = readVarInt();
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	public long readVarLong() throws IOException {
+		long value = 0;
+		for(int shift = 0; shift < 70; shift += 7) {
+			int b = readByte();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varlong in frame");
+	}
+
+	public long readLong() throws EOFException {
+		long value = 0;
+		for(int cnt = 0; cnt < 8; cnt++) {
+			value = (value << 8) | readByte();
+		}
+		return value;
+	}
+
+	public String readString() throws IOException {
+		int length = readVarInt();
+		if(length == 0) {
+			return null;
+		}
+		if(length > 0) {
+			length--;
+			if(length > remaining()) {
+				throw new EOFException("Frame underflow");
+			}
+			char[] chars = new char[length];
+			for(int cnt = 0; cnt < length; cnt++) {
+				chars[cnt] = (char)(data[position++] & 0x7F);
+			}
+			return new String(chars);
+		} else {
+			length = -length - 1;
+			if(length > remaining()) {
+				throw new EOFException("Frame underflow");
+			}
+			String s = new String(data, position, length, "UTF-8");
+			position += length;
+			return s;
+		}
+	}
+
+	static void writeVarInt(OutputStream out, int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	InputStream asInputStream() {
+		return new InputStream() {
+			@Override
+			public int read() {
+				if(position >= limit) {
+					return -1;
+				}
+				return data[position++] & 0xFF;
+			}
+			@Override
+			public int read(byte[] b, int offset, int length) {
+				if(position >= limit) {
+					return -1;
+				}
+				int count = Math.min(length, limit - position);
+				System.arraycopy(data, position, b, offset, count);
+				position += count;
+				return count;
+			}
+			@Override
+			public int available() {
+				return limit - position;
+			}
+		};
+	}
+
+}
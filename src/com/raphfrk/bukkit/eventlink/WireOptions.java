@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (C) 2012 Raphfrk
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.raphfrk.bukkit.eventlink;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+
+// Wire format negotiation
+//
+// After the server names are exchanged each side sends an offer as a normal packet with a String
+// payload. Older versions ignore String payloads, so they just see an unknown packet. If the first
+// object from the peer isn't an offer, the peer is an older version and the link stays on Java
+// serialization. That first packet is kept so it can be processed normally.
+
+public class WireOptions {
+
+	static final String offerPrefix = "EventLinkWire:";
+
+	static final int legacyVersion = 0;
+	// Version 1 frames had no dictionary, peers that only offer it use serialized objects
+	static final int binaryVersion = 2;
+	// Adds fragment frames
+	static final int fragmentVersion = 3;
+
+	final int wireVersion;
+	final int dictionarySize;
+	// Frames over the compression threshold may be deflated, only if both ends offer it
+	final boolean compression;
+	// Routing tables are sent as RoutingUpdate deltas, works with either wire format
+	final boolean routingDeltas;
+
+	// First packet read from a legacy peer during negotiation
+	final EventLinkPacket legacyPacket;
+
+	WireOptions(int wireVersion, int dictionarySize) {
+		this(wireVersion, dictionarySize, false, false, null);
+	}
+
+	WireOptions(int wireVersion, int dictionarySize, boolean compression) {
+		this(wireVersion, dictionarySize, compression, false, null);
+	}
+
+	WireOptions(int wireVersion, int dictionarySize, boolean compression, boolean routingDeltas) {
+		this(wireVersion, dictionarySize, compression, routingDeltas, null);
+	}
+
+	private WireOptions(int wireVersion, int dictionarySize, boolean compression, boolean routingDeltas, EventLinkPacket legacyPacket) {
+		this.wireVersion = wireVersion;
+		this.dictionarySize = dictionarySize;
+		this.compression = compression;
+		this.routingDeltas = routingDeltas;
+		this.legacyPacket = legacyPacket;
+	}
+
+	static WireOptions getLocalOptions(EventLink p) {
+		return new WireOptions(p.binaryWireFormat ? fragmentVersion : legacyVersion, Math.max(0, p.wireDictionarySize), p.compression, true);
+	}
+
+	boolean isBinary() {
+		return wireVersion >= binaryVersion;
+	}
+
+	boolean supportsFragments() {
+		return wireVersion >= fragmentVersion;
+	}
+
+	@Override
+	public String toString() {
+		return offerPrefix + "version=" + wireVersion + ",dict=" + dictionarySize + ",compress=" + (compression ? 1 : 0) + ",deltas=" + (routingDeltas ? 1 : 0);
+	}
+
+	static WireOptions parseOffer(String offer) {
+		int version = legacyVersion;
+		int dictionarySize = 0;
+		boolean compression = false;
+		boolean routingDeltas = false;
+		for(String field : offer.substring(offerPrefix.length()).split(",")) {
+			String[] split = field.split("=", 2);
+			if(split.length != 2) {
+				continue;
+			}
+			try {
+				if(split[0].equals("version")) {
+					version = Integer.parseInt(split[1]);
+				} else if(split[0].equals("dict")) {
+					dictionarySize = Math.max(0, Integer.parseInt(split[1]));
+				} else if(split[0].equals("compress")) {
+					compression = Integer.parseInt(split[1]) != 0;
+				} else if(split[0].equals("deltas")) {
+					routingDeltas = Integer.parseInt(split[1]) != 0;
+				}
+			} catch (NumberFormatException nfe) {
+			}
+		}
+		return new WireOptions(version, dictionarySize, compression, routingDeltas);
+	}
+
+	WireOptions negotiate(WireOptions remote) {
+		int version = Math.min(wireVersion, remote.wireVersion);
+		if(version < binaryVersion) {
+			version = legacyVersion;
+		}
+		return new WireOptions(version, Math.min(dictionarySize, remote.dictionarySize), version != legacyVersion && compression && remote.compression, routingDeltas && remote.routingDeltas);
+	}
+
+	static WireOptions exchange(EventLink p, Socket s, ObjectInputStream in, ObjectOutputStream out, String localName, String peerName) throws IOException, ClassNotFoundException {
+
+		WireOptions local = getLocalOptions(p);
+
+		out.writeObject(new EventLinkPacket(localName, peerName, local.toString()));
+		out.flush();
+
+		int oldTimeout = s.getSoTimeout();
+		Object obj;
+		// Same limit as the rest of the handshake, on the server the deadline also bounds it
+		s.setSoTimeout(p.handshakeTimeout);
+		try {
+			obj = in.readObject();
+		} finally {
+			s.setSoTimeout(oldTimeout);
+		}
+
+		if(!(obj instanceof EventLinkPacket)) {
+			throw new StreamCorruptedException("Non-packet received during wire negotiation");
+		}
+
+		EventLinkPacket packet = (EventLinkPacket)obj;
+
+		if(packet.payload instanceof String && ((String)packet.payload).startsWith(offerPrefix)) {
+			WireOptions negotiated = local.negotiate(parseOffer((String)packet.payload));
+			p.log("Wire format with " + peerName + ": " + (negotiated.isBinary() ? "binary" : "serialized") + (negotiated.compression ? ", compressed" : ""));
+			return negotiated;
+		}
+
+		p.log(peerName + " did not send a wire format offer, using serialized objects");
+		return new WireOptions(legacyVersion, 0, false, false, packet);
+
+	}
+
+}